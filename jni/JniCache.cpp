@@ -0,0 +1,229 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include "JniCache.h"
+#include "Utils.h"
+
+JniCache jniCache;
+
+static const char* const filterTypeNames[JniCache::FILTER_TYPE_COUNT] =
+{
+  "BLOCKING", "EXCEPTION", "ELEMHIDE", "ELEMHIDE_EXCEPTION", "COMMENT", "INVALID"
+};
+
+static const char* const logLevelNames[JniCache::LOG_LEVEL_COUNT] =
+{
+  "TRACE", "LOG", "INFO", "WARN", "ERROR"
+};
+
+static const char* const notificationTypeNames[JniCache::NOTIFICATION_TYPE_COUNT] =
+{
+  "INFORMATION", "QUESTION", "CRITICAL", "INVALID"
+};
+
+static jclass CacheClass(JNIEnv* env, const char* name)
+{
+  JniLocalReference<jclass> clazz(env, env->FindClass(name));
+  if (!*clazz)
+  {
+    throw std::runtime_error(std::string("Class not found: ") + name);
+  }
+  return static_cast<jclass>(env->NewGlobalRef(*clazz));
+}
+
+static jmethodID CacheMethod(JNIEnv* env, jclass clazz, const char* name, const char* signature)
+{
+  jmethodID method = env->GetMethodID(clazz, name, signature);
+  if (!method)
+  {
+    throw std::runtime_error(std::string("Method not found: ") + name);
+  }
+  return method;
+}
+
+static jfieldID CacheField(JNIEnv* env, jclass clazz, const char* name, const char* signature)
+{
+  jfieldID field = env->GetFieldID(clazz, name, signature);
+  if (!field)
+  {
+    throw std::runtime_error(std::string("Field not found: ") + name);
+  }
+  return field;
+}
+
+static void CacheEnum(JNIEnv* env, const char* className, const char* signature,
+    const char* const* names, int count, jobject* values)
+{
+  JniLocalReference<jclass> clazz(env, env->FindClass(className));
+  if (!*clazz)
+  {
+    throw std::runtime_error(std::string("Class not found: ") + className);
+  }
+
+  for (int i = 0; i < count; i++)
+  {
+    jfieldID field = env->GetStaticFieldID(*clazz, names[i], signature);
+    if (!field)
+    {
+      throw std::runtime_error(std::string("Enum constant not found: ") + names[i]);
+    }
+    JniLocalReference<jobject> value(env, env->GetStaticObjectField(*clazz, field));
+    values[i] = env->NewGlobalRef(*value);
+  }
+}
+
+static void DeleteGlobalRefs(JNIEnv* env, jobject* values, int count)
+{
+  for (int i = 0; i < count; i++)
+  {
+    if (values[i])
+    {
+      env->DeleteGlobalRef(values[i]);
+      values[i] = 0;
+    }
+  }
+}
+
+static void FillCache(JNIEnv* env)
+{
+  jniCache.arrayListClass = CacheClass(env, "java/util/ArrayList");
+  jniCache.arrayListCtor = CacheMethod(env, jniCache.arrayListClass, "<init>", "()V");
+  {
+    JniLocalReference<jclass> listClass(env, env->FindClass("java/util/List"));
+    jniCache.listAdd = CacheMethod(env, *listClass, "add", "(Ljava/lang/Object;)Z");
+    JniLocalReference<jclass> enumClass(env, env->FindClass("java/lang/Enum"));
+    jniCache.enumName = CacheMethod(env, *enumClass, "name", "()Ljava/lang/String;");
+  }
+
+  jniCache.exceptionClass = CacheClass(env, PKG("AdblockPlusException"));
+  jniCache.exceptionHandlerClass = CacheClass(env, PKG("JniExceptionHandler"));
+  jniCache.exceptionHandlerLogException = env->GetStaticMethodID(jniCache.exceptionHandlerClass,
+      "logException", "(Ljava/lang/Throwable;)V");
+  if (!jniCache.exceptionHandlerLogException)
+  {
+    throw std::runtime_error("Method not found: logException");
+  }
+
+  jniCache.jsValueClass = CacheClass(env, PKG("JsValue"));
+  jniCache.jsValueCtor = CacheMethod(env, jniCache.jsValueClass, "<init>", "(J)V");
+  jniCache.filterClass = CacheClass(env, PKG("Filter"));
+  jniCache.filterCtor = CacheMethod(env, jniCache.filterClass, "<init>", "(J)V");
+  jniCache.subscriptionClass = CacheClass(env, PKG("Subscription"));
+  jniCache.subscriptionCtor = CacheMethod(env, jniCache.subscriptionClass, "<init>", "(J)V");
+  jniCache.notificationClass = CacheClass(env, PKG("Notification"));
+  jniCache.notificationCtor = CacheMethod(env, jniCache.notificationClass, "<init>", "(J)V");
+
+  jniCache.headerEntryClass = CacheClass(env, PKG("HeaderEntry"));
+  jniCache.headerEntryCtor = CacheMethod(env, jniCache.headerEntryClass, "<init>",
+      "(Ljava/lang/String;Ljava/lang/String;)V");
+  jniCache.serverResponseClass = CacheClass(env, PKG("ServerResponse"));
+  jniCache.serverResponseStatus = CacheField(env, jniCache.serverResponseClass, "status", "J");
+  jniCache.serverResponseResponseStatus = CacheField(env, jniCache.serverResponseClass, "responseStatus", "I");
+  jniCache.serverResponseResponse = CacheField(env, jniCache.serverResponseClass, "response", "Ljava/lang/String;");
+
+  // Callbacks are abstract methods of the base classes, calls through these
+  // IDs are dispatched to the implementing subclasses
+  {
+    JniLocalReference<jclass> clazz(env, env->FindClass(PKG("EventCallback")));
+    jniCache.eventCallback = CacheMethod(env, *clazz, "eventCallback", "(Ljava/util/List;)V");
+  }
+  {
+    JniLocalReference<jclass> clazz(env, env->FindClass(PKG("FilterChangeCallback")));
+    jniCache.filterChangeCallback = CacheMethod(env, *clazz, "filterChangeCallback",
+        "(Ljava/lang/String;" TYP("JsValue") ")V");
+  }
+  {
+    JniLocalReference<jclass> clazz(env, env->FindClass(PKG("LogSystem")));
+    jniCache.logCallback = CacheMethod(env, *clazz, "logCallback",
+        "(" TYP("LogSystem$LogLevel") "Ljava/lang/String;Ljava/lang/String;)V");
+  }
+  {
+    JniLocalReference<jclass> clazz(env, env->FindClass(PKG("UpdateAvailableCallback")));
+    jniCache.updateAvailableCallback = CacheMethod(env, *clazz, "updateAvailableCallback",
+        "(Ljava/lang/String;)V");
+  }
+  {
+    JniLocalReference<jclass> clazz(env, env->FindClass(PKG("UpdateCheckDoneCallback")));
+    jniCache.updateCheckDoneCallback = CacheMethod(env, *clazz, "updateCheckDoneCallback",
+        "(Ljava/lang/String;)V");
+  }
+  {
+    JniLocalReference<jclass> clazz(env, env->FindClass(PKG("WebRequest")));
+    jniCache.webRequestGet = CacheMethod(env, *clazz, "httpGET",
+        "(Ljava/lang/String;Ljava/util/List;)" TYP("ServerResponse"));
+  }
+
+  {
+    JniLocalReference<jclass> clazz(env, env->FindClass(PKG("FilterVisitor")));
+    jniCache.filterVisitorVisit = CacheMethod(env, *clazz, "visitFilter",
+        "(Ljava/lang/String;" TYP("Filter$Type") ")Z");
+  }
+
+  CacheEnum(env, PKG("Filter$Type"), TYP("Filter$Type"),
+      filterTypeNames, JniCache::FILTER_TYPE_COUNT, jniCache.filterTypes);
+  CacheEnum(env, PKG("LogSystem$LogLevel"), TYP("LogSystem$LogLevel"),
+      logLevelNames, JniCache::LOG_LEVEL_COUNT, jniCache.logLevels);
+  CacheEnum(env, PKG("Notification$Type"), TYP("Notification$Type"),
+      notificationTypeNames, JniCache::NOTIFICATION_TYPE_COUNT, jniCache.notificationTypes);
+}
+
+static void ClearCache(JNIEnv* env)
+{
+  jobject classes[] =
+  {
+    jniCache.arrayListClass, jniCache.exceptionClass, jniCache.exceptionHandlerClass,
+    jniCache.jsValueClass, jniCache.filterClass, jniCache.subscriptionClass,
+    jniCache.notificationClass, jniCache.headerEntryClass, jniCache.serverResponseClass
+  };
+  DeleteGlobalRefs(env, classes, sizeof(classes) / sizeof(classes[0]));
+  DeleteGlobalRefs(env, jniCache.filterTypes, JniCache::FILTER_TYPE_COUNT);
+  DeleteGlobalRefs(env, jniCache.logLevels, JniCache::LOG_LEVEL_COUNT);
+  DeleteGlobalRefs(env, jniCache.notificationTypes, JniCache::NOTIFICATION_TYPE_COUNT);
+  jniCache = JniCache();
+}
+
+extern "C" JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved)
+{
+  JNIEnv* env;
+  if (vm->GetEnv(reinterpret_cast<void**>(&env), ABP_JNI_VERSION) != JNI_OK)
+  {
+    return JNI_ERR;
+  }
+
+  try
+  {
+    FillCache(env);
+  }
+  catch (const std::exception&)
+  {
+    // A pending NoClassDefFoundError/NoSuchMethodError makes loadLibrary fail
+    // with a meaningful message, don't leave references behind either way
+    ClearCache(env);
+    return JNI_ERR;
+  }
+
+  return ABP_JNI_VERSION;
+}
+
+extern "C" JNIEXPORT void JNICALL JNI_OnUnload(JavaVM* vm, void* reserved)
+{
+  JNIEnv* env;
+  if (vm->GetEnv(reinterpret_cast<void**>(&env), ABP_JNI_VERSION) == JNI_OK)
+  {
+    ClearCache(env);
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef JNICACHE_H
+#define JNICACHE_H
+
+#include <jni.h>
+
+/**
+ * Global class references and member IDs used by the JNI bridges. They are
+ * resolved once in JNI_OnLoad, so that calls into Java do not have to go
+ * through FindClass/GetMethodID every time. The enum arrays hold global
+ * references to the enum constants, indexed by ordinal.
+ */
+struct JniCache
+{
+  jclass arrayListClass;
+  jmethodID arrayListCtor;
+  jmethodID listAdd;
+  jmethodID enumName;
+
+  jclass exceptionClass;
+  jclass exceptionHandlerClass;
+  jmethodID exceptionHandlerLogException;
+
+  jclass jsValueClass;
+  jmethodID jsValueCtor;
+  jclass filterClass;
+  jmethodID filterCtor;
+  jclass subscriptionClass;
+  jmethodID subscriptionCtor;
+  jclass notificationClass;
+  jmethodID notificationCtor;
+
+  jclass headerEntryClass;
+  jmethodID headerEntryCtor;
+  jclass serverResponseClass;
+  jfieldID serverResponseStatus;
+  jfieldID serverResponseResponseStatus;
+  jfieldID serverResponseResponse;
+
+  jmethodID eventCallback;
+  jmethodID filterChangeCallback;
+  jmethodID logCallback;
+  jmethodID updateAvailableCallback;
+  jmethodID updateCheckDoneCallback;
+  jmethodID webRequestGet;
+  jmethodID filterVisitorVisit;
+
+  enum FilterType
+  {
+    FILTER_TYPE_BLOCKING, FILTER_TYPE_EXCEPTION, FILTER_TYPE_ELEMHIDE,
+    FILTER_TYPE_ELEMHIDE_EXCEPTION, FILTER_TYPE_COMMENT, FILTER_TYPE_INVALID,
+    FILTER_TYPE_COUNT
+  };
+  jobject filterTypes[FILTER_TYPE_COUNT];
+
+  enum LogLevel
+  {
+    LOG_LEVEL_TRACE, LOG_LEVEL_LOG, LOG_LEVEL_INFO, LOG_LEVEL_WARN,
+    LOG_LEVEL_ERROR, LOG_LEVEL_COUNT
+  };
+  jobject logLevels[LOG_LEVEL_COUNT];
+
+  enum NotificationType
+  {
+    NOTIFICATION_TYPE_INFORMATION, NOTIFICATION_TYPE_QUESTION,
+    NOTIFICATION_TYPE_CRITICAL, NOTIFICATION_TYPE_INVALID,
+    NOTIFICATION_TYPE_COUNT
+  };
+  jobject notificationTypes[NOTIFICATION_TYPE_COUNT];
+};
+
+extern JniCache jniCache;
+
+#endif /* JNICACHE_H */
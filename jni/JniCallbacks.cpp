@@ -18,8 +18,7 @@
 #include "JniCallbacks.h"
 
 JniCallbackBase::JniCallbackBase(JNIEnv* env, jobject callbackObject)
-  : callbackObject(new JniGlobalReference<jobject>(env, callbackObject)),
-    exceptionLoggerClass(new JniGlobalReference<jclass>(env, env->FindClass(PKG("JniExceptionHandler"))))
+  : callbackObject(new JniGlobalReference<jobject>(env, callbackObject))
 {
   env->GetJavaVM(&javaVM);
 }
@@ -31,11 +30,8 @@ JniCallbackBase::~JniCallbackBase()
 
 void JniCallbackBase::LogException(JNIEnv* env, jthrowable throwable) const
 {
-  jmethodID logMethod = env->GetStaticMethodID(exceptionLoggerClass->Get(), "logException", "(Ljava/lang/Throwable;)V");
-  if (logMethod)
-  {
-    env->CallStaticVoidMethod(exceptionLoggerClass->Get(), logMethod, throwable);
-  }
+  env->CallStaticVoidMethod(jniCache.exceptionHandlerClass,
+      jniCache.exceptionHandlerLogException, throwable);
 }
 
 void JniCallbackBase::CheckAndLogJavaException(JNIEnv* env) const
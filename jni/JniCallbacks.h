@@ -43,7 +43,6 @@ public:
 private:
   JavaVM* javaVM;
   const JniGlobalReference<jobject>::Ptr callbackObject;
-  const JniGlobalReference<jclass>::Ptr exceptionLoggerClass;
 };
 
 class JniEventCallback : public JniCallbackBase
@@ -72,9 +71,6 @@ class JniFilterChangeCallback : public JniCallbackBase
 public:
   JniFilterChangeCallback(JNIEnv* env, jobject callbackObject);
   void Callback(const std::string& arg, const AdblockPlus::JsValuePtr jsValue);
-
-private:
-  const JniGlobalReference<jclass>::Ptr jsValueClass;
 };
 
 class JniLogSystemCallback : public JniCallbackBase, public AdblockPlus::LogSystem
@@ -83,8 +79,24 @@ public:
   JniLogSystemCallback(JNIEnv* env, jobject callbackObject);
   void operator()(AdblockPlus::LogSystem::LogLevel logLevel, const std::string& message, const std::string& source);
 
+  /**
+   * Messages below this level (a LogSystem.LogLevel ordinal) are dropped
+   * without calling into Java.
+   */
+  void SetMinLogLevel(int level)
+  {
+    minLogLevel = level;
+  }
+
+  uint64_t GetSuppressedCount() const
+  {
+    // 64 bit loads are not atomic on 32 bit ARM
+    return __sync_fetch_and_add(const_cast<volatile uint64_t*>(&suppressedCount), 0);
+  }
+
 private:
-  const JniGlobalReference<jclass>::Ptr logLevelClass;
+  volatile int minLogLevel;
+  volatile uint64_t suppressedCount;
 };
 
 class JniWebRequest : public JniCallbackBase, public AdblockPlus::WebRequest
@@ -95,9 +107,6 @@ public:
 
 private:
   jobject NewTuple(JNIEnv* env, const std::string& a, const std::string& b) const;
-
-  const JniGlobalReference<jclass>::Ptr tupleClass;
-  const JniGlobalReference<jclass>::Ptr serverResponseClass;
 };
 
 #endif /* JNICALLBACKS_H */
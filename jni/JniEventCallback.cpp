@@ -40,16 +40,8 @@ void JniEventCallback::Callback(AdblockPlus::JsValueList& params)
 {
   JNIEnvAcquire env(GetJavaVM());
 
-  jmethodID method = env->GetMethodID(
-      *JniLocalReference<jclass>(*env,
-          env->GetObjectClass(GetCallbackObject())),
-      "eventCallback", "(Ljava/util/List;)V");
-
-  if (method)
-  {
-    jobject jsList = JniJsValueListToArrayList(*env, params);
-    env->CallVoidMethod(GetCallbackObject(), method, jsList);
-  }
+  JniLocalReference<jobject> jsList(*env, JniJsValueListToArrayList(*env, params));
+  env->CallVoidMethod(GetCallbackObject(), jniCache.eventCallback, *jsList);
 }
 
 static JNINativeMethod methods[] =
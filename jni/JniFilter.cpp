@@ -42,34 +42,7 @@ static jobject JNICALL JniGetType(JNIEnv* env, jclass clazz, jlong ptr)
   }
   CATCH_THROW_AND_RETURN(env, 0)
 
-  const char* enumName = 0;
-
-  switch (type)
-  {
-  case AdblockPlus::Filter::TYPE_BLOCKING:
-    enumName = "BLOCKING";
-    break;
-  case AdblockPlus::Filter::TYPE_COMMENT:
-    enumName = "COMMENT";
-    break;
-  case AdblockPlus::Filter::TYPE_ELEMHIDE:
-    enumName = "ELEMHIDE";
-    break;
-  case AdblockPlus::Filter::TYPE_ELEMHIDE_EXCEPTION:
-    enumName = "ELEMHIDE_EXCEPTION";
-    break;
-  case AdblockPlus::Filter::TYPE_EXCEPTION:
-    enumName = "EXCEPTION";
-    break;
-  default:
-    enumName = "INVALID";
-    break;
-  }
-
-  JniLocalReference<jclass> enumClass(env, env->FindClass(PKG("Filter$Type")));
-  jfieldID enumField = env->GetStaticFieldID(*enumClass, enumName,
-      TYP("Filter$Type"));
-  return env->GetStaticObjectField(*enumClass, enumField);
+  return env->NewLocalRef(jniCache.filterTypes[JniGetFilterTypeIndex(type)]);
 }
 
 static jboolean JNICALL JniIsListed(JNIEnv* env, jclass clazz, jlong ptr)
@@ -33,8 +33,7 @@ static void JNICALL JniDtor(JNIEnv* env, jclass clazz, jlong ptr)
 
 JniFilterChangeCallback::JniFilterChangeCallback(JNIEnv* env,
     jobject callbackObject)
-    : JniCallbackBase(env, callbackObject), jsValueClass(
-        new JniGlobalReference<jclass>(env, env->FindClass(PKG("JsValue"))))
+    : JniCallbackBase(env, callbackObject)
 {
 }
 
@@ -43,18 +42,10 @@ void JniFilterChangeCallback::Callback(const std::string& arg,
 {
   JNIEnvAcquire env(GetJavaVM());
 
-  jmethodID method = env->GetMethodID(
-      *JniLocalReference<jclass>(*env,
-          env->GetObjectClass(GetCallbackObject())),
-      "filterChangeCallback", "(Ljava/lang/String;" TYP("JsValue") ")V");
-
-  if (method)
-  {
-    JniLocalReference<jstring> jArg(*env, env->NewStringUTF(arg.c_str()));
-    JniLocalReference<jobject> jJsValue(*env,
-        NewJniJsValue(*env, jsValue, jsValueClass->Get()));
-    env->CallVoidMethod(GetCallbackObject(), method, *jArg, *jJsValue);
-  }
+  JniLocalReference<jstring> jArg(*env, env->NewStringUTF(arg.c_str()));
+  JniLocalReference<jobject> jJsValue(*env, NewJniJsValue(*env, jsValue));
+  env->CallVoidMethod(GetCallbackObject(), jniCache.filterChangeCallback,
+      *jArg, *jJsValue);
 
   CheckAndLogJavaException(*env);
 }
@@ -25,7 +25,7 @@ static jobject SubscriptionsToArrayList(JNIEnv* env, std::vector<AdblockPlus::Su
 
   for (std::vector<AdblockPlus::SubscriptionPtr>::iterator it = subscriptions.begin(), end = subscriptions.end(); it != end; it++)
   {
-    JniAddObjectToList(env, list, NewJniSubscription(env, *it));
+    JniAddObjectToList(env, list, *JniLocalReference<jobject>(env, NewJniSubscription(env, *it)));
   }
 
   return list;
@@ -34,12 +34,8 @@ static jobject SubscriptionsToArrayList(JNIEnv* env, std::vector<AdblockPlus::Su
 static AdblockPlus::FilterEngine::ContentType ConvertContentType(JNIEnv *env,
     jobject jContentType)
 {
-  JniLocalReference<jclass> contentTypeClass(env,
-      env->GetObjectClass(jContentType));
-  jmethodID nameMethod = env->GetMethodID(*contentTypeClass, "name",
-      "()Ljava/lang/String;");
   JniLocalReference<jstring> jValue(env,
-      (jstring) env->CallObjectMethod(jContentType, nameMethod));
+      (jstring) env->CallObjectMethod(jContentType, jniCache.enumName));
   const std::string value = JniJavaToStdString(env, *jValue);
   return AdblockPlus::FilterEngine::StringToContentType(value);
 }
@@ -104,6 +100,36 @@ static jobject JNICALL JniGetListedFilters(JNIEnv* env, jclass clazz, jlong ptr)
   CATCH_THROW_AND_RETURN(env, 0);
 }
 
+static jint JNICALL JniVisitListedFilters(JNIEnv* env, jclass clazz, jlong ptr, jobject visitor)
+{
+  AdblockPlus::FilterEngine* engine = JniLongToTypePtr<AdblockPlus::FilterEngine>(ptr);
+
+  try
+  {
+    std::vector<AdblockPlus::FilterPtr> filters = engine->GetListedFilters();
+
+    jint visited = 0;
+    for (std::vector<AdblockPlus::FilterPtr>::iterator it = filters.begin(), end = filters.end(); it != end; it++)
+    {
+      // Only the text crosses the JNI boundary, no wrapper objects are created
+      JniLocalReference<jstring> jText(env,
+          env->NewStringUTF((*it)->GetProperty("text")->AsString().c_str()));
+      jobject jType = jniCache.filterTypes[JniGetFilterTypeIndex((*it)->GetType())];
+
+      const jboolean proceed = env->CallBooleanMethod(visitor, jniCache.filterVisitorVisit, *jText, jType);
+      visited++;
+
+      if (env->ExceptionCheck() || proceed == JNI_FALSE)
+      {
+        break;
+      }
+    }
+
+    return visited;
+  }
+  CATCH_THROW_AND_RETURN(env, 0);
+}
+
 static jobject JNICALL JniGetSubscription(JNIEnv* env, jclass clazz, jlong ptr, jstring jUrl)
 {
   AdblockPlus::FilterEngine* engine = JniLongToTypePtr<AdblockPlus::FilterEngine>(ptr);
@@ -353,6 +379,7 @@ static JNINativeMethod methods[] =
   { (char*)"isFirstRun", (char*)"(J)Z", (void*)JniIsFirstRun },
   { (char*)"getFilter", (char*)"(JLjava/lang/String;)" TYP("Filter"), (void*)JniGetFilter },
   { (char*)"getListedFilters", (char*)"(J)Ljava/util/List;", (void*)JniGetListedFilters },
+  { (char*)"visitListedFilters", (char*)"(J" TYP("FilterVisitor") ")I", (void*)JniVisitListedFilters },
   { (char*)"getSubscription", (char*)"(JLjava/lang/String;)" TYP("Subscription"), (void*)JniGetSubscription },
   { (char*)"getNextNotificationToShow", (char*)"(JLjava/lang/String;)" TYP("Notification"), (void*)JniGetNextNotificationToShow },
   { (char*)"getListedSubscriptions", (char*)"(J)Ljava/util/List;", (void*)JniGetListedSubscriptions },
@@ -134,24 +134,15 @@ static void JNICALL JniDtor(JNIEnv* env, jclass clazz, jlong ptr)
   delete JniLongToTypePtr<AdblockPlus::JsValuePtr>(ptr);
 }
 
-jobject NewJniJsValue(JNIEnv* env, const AdblockPlus::JsValuePtr& jsValue, jclass jsValueClass)
+jobject NewJniJsValue(JNIEnv* env, const AdblockPlus::JsValuePtr& jsValue)
 {
   if (!jsValue.get())
   {
     return 0;
   }
 
-  jclass clazz = jsValueClass ? jsValueClass : env->FindClass(PKG("JsValue"));
-  jmethodID ctor = env->GetMethodID(clazz, "<init>", "(J)V");
   jlong ptr = JniPtrToLong(new AdblockPlus::JsValuePtr(jsValue));
-  jobject ret = env->NewObject(clazz, ctor, ptr);
-
-  if (!jsValueClass)
-  {
-    env->DeleteLocalRef(clazz);
-  }
-
-  return ret;
+  return env->NewObject(jniCache.jsValueClass, jniCache.jsValueCtor, ptr);
 }
 
 AdblockPlus::JsValue* JniGetJsValue(jlong ptr)
@@ -31,73 +31,73 @@ static void JNICALL JniDtor(JNIEnv* env, jclass clazz, jlong ptr)
   delete JniLongToTypePtr<JniLogSystemCallback>(ptr);
 }
 
+static void JNICALL JniSetMinLogLevel(JNIEnv* env, jclass clazz, jlong ptr, jint level)
+{
+  JniLongToTypePtr<JniLogSystemCallback>(ptr)->SetMinLogLevel(level);
+}
+
+static jlong JNICALL JniGetSuppressedCount(JNIEnv* env, jclass clazz, jlong ptr)
+{
+  return JniLongToTypePtr<JniLogSystemCallback>(ptr)->GetSuppressedCount();
+}
+
 JniLogSystemCallback::JniLogSystemCallback(JNIEnv* env, jobject callbackObject)
-  : JniCallbackBase(env, callbackObject), AdblockPlus::LogSystem(), logLevelClass(new JniGlobalReference<jclass>(env, env->FindClass(PKG("LogSystem$LogLevel"))))
+  : JniCallbackBase(env, callbackObject), AdblockPlus::LogSystem(),
+    minLogLevel(JniCache::LOG_LEVEL_TRACE), suppressedCount(0)
 {
 }
 
 void JniLogSystemCallback::operator()(AdblockPlus::LogSystem::LogLevel logLevel,
     const std::string& message, const std::string& source)
 {
-  JNIEnvAcquire env(GetJavaVM());
+  JniCache::LogLevel index;
 
-  jmethodID method = env->GetMethodID(
-      *JniLocalReference<jclass>(*env,
-          env->GetObjectClass(GetCallbackObject())),
-      "logCallback",
-      "(" TYP("LogSystem$LogLevel") "Ljava/lang/String;Ljava/lang/String;)V");
-
-  // TODO: Set log level from Java and handle it here (to reduce C++->Java calls)
-
-  if (method)
+  switch (logLevel)
   {
-    const char* enumName = 0;
+  default:
+  case AdblockPlus::LogSystem::LOG_LEVEL_TRACE:
+    index = JniCache::LOG_LEVEL_TRACE;
+    break;
+  case AdblockPlus::LogSystem::LOG_LEVEL_LOG:
+    index = JniCache::LOG_LEVEL_LOG;
+    break;
+  case AdblockPlus::LogSystem::LOG_LEVEL_INFO:
+    index = JniCache::LOG_LEVEL_INFO;
+    break;
+  case AdblockPlus::LogSystem::LOG_LEVEL_WARN:
+    index = JniCache::LOG_LEVEL_WARN;
+    break;
+  case AdblockPlus::LogSystem::LOG_LEVEL_ERROR:
+    index = JniCache::LOG_LEVEL_ERROR;
+    break;
+  }
 
-    switch (logLevel)
-    {
-    default:
-    case AdblockPlus::LogSystem::LOG_LEVEL_TRACE:
-      enumName = "TRACE";
-      break;
-    case AdblockPlus::LogSystem::LOG_LEVEL_LOG:
-      enumName = "LOG";
-      break;
-    case AdblockPlus::LogSystem::LOG_LEVEL_INFO:
-      enumName = "INFO";
-      break;
-    case AdblockPlus::LogSystem::LOG_LEVEL_WARN:
-      enumName = "WARN";
-      break;
-    case AdblockPlus::LogSystem::LOG_LEVEL_ERROR:
-      enumName = "ERROR";
-      break;
-    }
+  // Filter before attaching the thread and converting any strings
+  if (index < minLogLevel)
+  {
+    __sync_fetch_and_add(&suppressedCount, 1);
+    return;
+  }
 
-    jclass enumClass = logLevelClass->Get();
-    if (enumClass)
-    {
-      jfieldID enumField = env->GetStaticFieldID(enumClass, enumName,
-          TYP("LogSystem$LogLevel"));
-      JniLocalReference<jobject> jLogLevel(*env,
-          env->GetStaticObjectField(enumClass, enumField));
+  JNIEnvAcquire env(GetJavaVM());
 
-      JniLocalReference<jstring> jMessage(*env,
-          env->NewStringUTF(message.c_str()));
-      JniLocalReference<jstring> jSource(*env,
-          env->NewStringUTF(source.c_str()));
+  JniLocalReference<jstring> jMessage(*env,
+      env->NewStringUTF(message.c_str()));
+  JniLocalReference<jstring> jSource(*env,
+      env->NewStringUTF(source.c_str()));
 
-      env->CallVoidMethod(GetCallbackObject(), method, *jLogLevel, *jMessage,
-          *jSource);
-    }
+  env->CallVoidMethod(GetCallbackObject(), jniCache.logCallback,
+      jniCache.logLevels[index], *jMessage, *jSource);
 
-    CheckAndLogJavaException(*env);
-  }
+  CheckAndLogJavaException(*env);
 }
 
 static JNINativeMethod methods[] =
 {
   { (char*)"ctor", (char*)"(Ljava/lang/Object;)J", (void*)JniCtor },
-  { (char*)"dtor", (char*)"(J)V", (void*)JniDtor }
+  { (char*)"dtor", (char*)"(J)V", (void*)JniDtor },
+  { (char*)"setMinLogLevel", (char*)"(JI)V", (void*)JniSetMinLogLevel },
+  { (char*)"getSuppressedCount", (char*)"(J)J", (void*)JniGetSuppressedCount }
 };
 
 extern "C" JNIEXPORT void JNICALL Java_org_adblockplus_libadblockplus_LogSystem_registerNatives(JNIEnv *env, jclass clazz)
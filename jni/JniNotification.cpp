@@ -33,34 +33,25 @@ static jobject JNICALL JniGetType(JNIEnv* env, jclass clazz, jlong ptr)
   }
   CATCH_THROW_AND_RETURN(env, 0)
 
-  const char* enumName = 0;
+  JniCache::NotificationType index;
 
   switch (type)
   {
   case AdblockPlus::NotificationType::NOTIFICATION_TYPE_CRITICAL:
-    enumName = "CRITICAL";
+    index = JniCache::NOTIFICATION_TYPE_CRITICAL;
     break;
   case AdblockPlus::NotificationType::NOTIFICATION_TYPE_INFORMATION:
-    enumName = "INFORMATION";
+    index = JniCache::NOTIFICATION_TYPE_INFORMATION;
     break;
   case AdblockPlus::NotificationType::NOTIFICATION_TYPE_QUESTION:
-    enumName = "QUESTION";
+    index = JniCache::NOTIFICATION_TYPE_QUESTION;
     break;
   default:
-    enumName = "INVALID";
+    index = JniCache::NOTIFICATION_TYPE_INVALID;
     break;
   }
 
-  JniLocalReference<jclass> enumClass(
-      env,
-      env->FindClass(PKG("Notification$Type")));
-
-  jfieldID enumField = env->GetStaticFieldID(
-      *enumClass,
-      enumName,
-      TYP("Notification$Type"));
-
-  return env->GetStaticObjectField(*enumClass, enumField);
+  return env->NewLocalRef(jniCache.notificationTypes[index]);
 }
 
 static jstring JniGetTitle(JNIEnv* env, jclass clazz, jlong ptr)
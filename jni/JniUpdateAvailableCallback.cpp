@@ -41,17 +41,8 @@ void JniUpdateAvailableCallback::Callback(const std::string& arg)
 {
   JNIEnvAcquire env(GetJavaVM());
 
-  jmethodID method = env->GetMethodID(
-      *JniLocalReference<jclass>(*env,
-          env->GetObjectClass(GetCallbackObject())),
-      "updateAvailableCallback",
-      "(Ljava/lang/String;)V");
-
-  if (method)
-  {
-    JniLocalReference<jstring> jArg(*env, env->NewStringUTF(arg.c_str()));
-    env->CallVoidMethod(GetCallbackObject(), method, *jArg);
-  }
+  JniLocalReference<jstring> jArg(*env, env->NewStringUTF(arg.c_str()));
+  env->CallVoidMethod(GetCallbackObject(), jniCache.updateAvailableCallback, *jArg);
 
   CheckAndLogJavaException(*env);
 }
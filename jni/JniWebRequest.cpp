@@ -32,9 +32,7 @@ static void JNICALL JniDtor(JNIEnv* env, jclass clazz, jlong ptr)
 }
 
 JniWebRequest::JniWebRequest(JNIEnv* env, jobject callbackObject)
-  : JniCallbackBase(env, callbackObject), AdblockPlus::WebRequest(),
-    tupleClass(new JniGlobalReference<jclass>(env, env->FindClass(PKG("HeaderEntry")))),
-    serverResponseClass(new JniGlobalReference<jclass>(env, env->FindClass(PKG("ServerResponse"))))
+  : JniCallbackBase(env, callbackObject), AdblockPlus::WebRequest()
 {
 }
 
@@ -43,42 +41,34 @@ AdblockPlus::ServerResponse JniWebRequest::GET(const std::string& url,
 {
   JNIEnvAcquire env(GetJavaVM());
 
-  jmethodID method = env->GetMethodID(
-      *JniLocalReference<jclass>(*env,
-          env->GetObjectClass(GetCallbackObject())),
-      "httpGET",
-      "(Ljava/lang/String;Ljava/util/List;)" TYP("ServerResponse"));
-
   AdblockPlus::ServerResponse sResponse;
   sResponse.status = AdblockPlus::WebRequest::NS_ERROR_FAILURE;
 
-  if (method)
+  JniLocalReference<jobject> arrayList(*env, NewJniArrayList(*env));
+
+  for (AdblockPlus::HeaderList::const_iterator it = requestHeaders.begin(),
+      end = requestHeaders.end(); it != end; it++)
   {
-    JniLocalReference<jobject> arrayList(*env, NewJniArrayList(*env));
-
-    for (AdblockPlus::HeaderList::const_iterator it = requestHeaders.begin(),
-        end = requestHeaders.end(); it != end; it++)
-    {
-      JniLocalReference<jobject> tuple(*env,
-          NewTuple(*env, it->first, it->second));
-      JniAddObjectToList(*env, *arrayList, *tuple);
-    }
-
-    JniLocalReference<jobject> response(*env,
-        env->CallObjectMethod(GetCallbackObject(), method,
-            *JniLocalReference<jstring>(*env, env->NewStringUTF(url.c_str())),
-            *arrayList));
-
-    if (!env->ExceptionCheck())
-    {
-      sResponse.status = JniGetLongField(*env, serverResponseClass->Get(),
-          *response, "status");
-      sResponse.responseStatus = JniGetIntField(*env,
-          serverResponseClass->Get(), *response, "responseStatus");
-      sResponse.responseText = JniGetStringField(*env,
-          serverResponseClass->Get(), *response, "response");
-      // TODO: transform Headers
-    }
+    JniLocalReference<jobject> tuple(*env,
+        NewTuple(*env, it->first, it->second));
+    JniAddObjectToList(*env, *arrayList, *tuple);
+  }
+
+  JniLocalReference<jobject> response(*env,
+      env->CallObjectMethod(GetCallbackObject(), jniCache.webRequestGet,
+          *JniLocalReference<jstring>(*env, env->NewStringUTF(url.c_str())),
+          *arrayList));
+
+  if (!env->ExceptionCheck())
+  {
+    sResponse.status = (int64_t)env->GetLongField(*response,
+        jniCache.serverResponseStatus);
+    sResponse.responseStatus = (int32_t)env->GetIntField(*response,
+        jniCache.serverResponseResponseStatus);
+    sResponse.responseText = JniJavaToStdString(*env,
+        *JniLocalReference<jstring>(*env, reinterpret_cast<jstring>(
+            env->GetObjectField(*response, jniCache.serverResponseResponse))));
+    // TODO: transform Headers
   }
 
   CheckAndLogJavaException(*env);
@@ -89,13 +79,11 @@ AdblockPlus::ServerResponse JniWebRequest::GET(const std::string& url,
 jobject JniWebRequest::NewTuple(JNIEnv* env, const std::string& a,
     const std::string& b) const
 {
-  jmethodID factory = env->GetMethodID(tupleClass->Get(), "<init>",
-      "(Ljava/lang/String;Ljava/lang/String;)V");
-
   JniLocalReference<jstring> strA(env, env->NewStringUTF(a.c_str()));
   JniLocalReference<jstring> strB(env, env->NewStringUTF(b.c_str()));
 
-  return env->NewObject(tupleClass->Get(), factory, *strA, *strB);
+  return env->NewObject(jniCache.headerEntryClass, jniCache.headerEntryCtor,
+      *strA, *strB);
 }
 
 static JNINativeMethod methods[] =
@@ -35,23 +35,36 @@ std::string JniJavaToStdString(JNIEnv* env, jstring str)
 
 jobject NewJniArrayList(JNIEnv* env)
 {
-  JniLocalReference<jclass> clazz(env, env->FindClass("java/util/ArrayList"));
-  jmethodID ctor = env->GetMethodID(*clazz, "<init>", "()V");
-  return env->NewObject(*clazz, ctor);
+  return env->NewObject(jniCache.arrayListClass, jniCache.arrayListCtor);
+}
+
+JniCache::FilterType JniGetFilterTypeIndex(AdblockPlus::Filter::Type type)
+{
+  switch (type)
+  {
+  case AdblockPlus::Filter::TYPE_BLOCKING:
+    return JniCache::FILTER_TYPE_BLOCKING;
+  case AdblockPlus::Filter::TYPE_COMMENT:
+    return JniCache::FILTER_TYPE_COMMENT;
+  case AdblockPlus::Filter::TYPE_ELEMHIDE:
+    return JniCache::FILTER_TYPE_ELEMHIDE;
+  case AdblockPlus::Filter::TYPE_ELEMHIDE_EXCEPTION:
+    return JniCache::FILTER_TYPE_ELEMHIDE_EXCEPTION;
+  case AdblockPlus::Filter::TYPE_EXCEPTION:
+    return JniCache::FILTER_TYPE_EXCEPTION;
+  default:
+    return JniCache::FILTER_TYPE_INVALID;
+  }
 }
 
 void JniAddObjectToList(JNIEnv* env, jobject list, jobject value)
 {
-  JniLocalReference<jclass> clazz(env, env->GetObjectClass(list));
-  jmethodID add = env->GetMethodID(*clazz, "add", "(Ljava/lang/Object;)Z");
-  env->CallBooleanMethod(list, add, value);
+  env->CallBooleanMethod(list, jniCache.listAdd, value);
 }
 
 void JniThrowException(JNIEnv* env, const std::string& message)
 {
-  JniLocalReference<jclass> clazz(env,
-      env->FindClass(PKG("AdblockPlusException")));
-  env->ThrowNew(*clazz, message.c_str());
+  env->ThrowNew(jniCache.exceptionClass, message.c_str());
 }
 
 void JniThrowException(JNIEnv* env, const std::exception& e)
@@ -88,37 +101,34 @@ JNIEnvAcquire::~JNIEnvAcquire()
 }
 
 template<typename T>
-static jobject NewJniObject(JNIEnv* env, const T& value, const char* javaClass)
+static jobject NewJniObject(JNIEnv* env, const T& value, jclass clazz, jmethodID ctor)
 {
   if (!value.get())
   {
     return 0;
   }
 
-  JniLocalReference<jclass> clazz(
-      env,
-      env->FindClass(javaClass));
-  jmethodID method = env->GetMethodID(*clazz, "<init>", "(J)V");
-
   return env->NewObject(
-      *clazz,
-      method,
+      clazz,
+      ctor,
       JniPtrToLong(new T(value)));
 }
 
 jobject NewJniFilter(JNIEnv* env, const AdblockPlus::FilterPtr& filter)
 {
-  return NewJniObject(env, filter, PKG("Filter"));
+  return NewJniObject(env, filter, jniCache.filterClass, jniCache.filterCtor);
 }
 
 jobject NewJniSubscription(JNIEnv* env,
     const AdblockPlus::SubscriptionPtr& subscription)
 {
-  return NewJniObject(env, subscription, PKG("Subscription"));
+  return NewJniObject(env, subscription, jniCache.subscriptionClass,
+      jniCache.subscriptionCtor);
 }
 
 jobject NewJniNotification(JNIEnv* env,
     const AdblockPlus::NotificationPtr& notification)
 {
-  return NewJniObject(env, notification, PKG("Notification"));
+  return NewJniObject(env, notification, jniCache.notificationClass,
+      jniCache.notificationCtor);
 }
@@ -26,6 +26,8 @@
 #include <AdblockPlus.h>
 #include <AdblockPlus/tr1_memory.h>
 
+#include "JniCache.h"
+
 #define PKG(x) "org/adblockplus/libadblockplus/" x
 #define TYP(x) "L" PKG(x) ";"
 
@@ -173,6 +175,8 @@ inline int64_t JniGetLongField(JNIEnv* env, jclass clazz, jobject jObj, const ch
 
 jobject NewJniArrayList(JNIEnv* env);
 
+JniCache::FilterType JniGetFilterTypeIndex(AdblockPlus::Filter::Type type);
+
 jobject NewJniFilter(JNIEnv* env, const AdblockPlus::FilterPtr& filter);
 
 jobject NewJniSubscription(JNIEnv* env,
@@ -17,10 +17,13 @@
 
 package org.adblockplus.android;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
 import org.adblockplus.libadblockplus.AppInfo;
+import org.adblockplus.libadblockplus.DisposableScope;
 import org.adblockplus.libadblockplus.Filter;
 import org.adblockplus.libadblockplus.FilterChangeCallback;
 import org.adblockplus.libadblockplus.FilterEngine;
@@ -42,6 +45,19 @@ public final class ABPEngine
 {
   private static final String TAG = Utils.getTag(ABPEngine.class);
 
+  /**
+   * Minimum level of libadblockplus messages passed on to the Android log,
+   * trace output during subscription parsing is dropped in native code.
+   */
+  private static final LogSystem.LogLevel DEFAULT_LOG_LEVEL = LogSystem.LogLevel.INFO;
+
+  /**
+   * Directory below the base path where subscription downloads are kept for
+   * conditional requests.
+   */
+  private static final String DOWNLOAD_CACHE_DIR = "downloads";
+  private static final String ELEMENT_HIDING_DIR = "elemhide";
+
   private final Context context;
 
   /*
@@ -62,6 +78,9 @@ public final class ABPEngine
   private volatile UpdateAvailableCallback updateAvailableCallback;
   private volatile UpdateCheckDoneCallback updateCheckDoneCallback;
   private volatile FilterChangeCallback filterChangeCallback;
+  private volatile ElementHidingStore elementHidingStore;
+
+  private final SubscriptionUpdateScheduler updateScheduler = new SubscriptionUpdateScheduler();
 
   private ABPEngine(final Context context)
   {
@@ -98,18 +117,26 @@ public final class ABPEngine
   {
     final ABPEngine engine = new ABPEngine(context);
 
+    final long start = System.currentTimeMillis();
     engine.jsEngine = new JsEngine(appInfo);
     engine.jsEngine.setDefaultFileSystem(basePath);
 
     engine.logSystem = new AndroidLogSystem();
+    engine.logSystem.setMinLogLevel(DEFAULT_LOG_LEVEL);
     engine.jsEngine.setLogSystem(engine.logSystem);
 
-    engine.webRequest = new AndroidWebRequest();
+    engine.elementHidingStore = new ElementHidingStore(new File(basePath, ELEMENT_HIDING_DIR));
+    engine.webRequest = new AndroidWebRequest(new File(basePath, DOWNLOAD_CACHE_DIR), engine.updateScheduler,
+        engine.elementHidingStore);
     engine.jsEngine.setWebRequest(engine.webRequest);
 
+    final long jsEngineCreated = System.currentTimeMillis();
     engine.filterEngine = new FilterEngine(engine.jsEngine);
+    Log.i(TAG, "JsEngine created in " + (jsEngineCreated - start) + " ms, FilterEngine loaded in "
+        + (System.currentTimeMillis() - jsEngineCreated) + " ms");
 
     engine.webRequest.updateSubscriptionURLs(engine.filterEngine);
+    engine.updateElementHidingSubscriptions();
 
     engine.updateAvailableCallback = new AndroidUpdateAvailableCallback(context);
     engine.filterEngine.setUpdateAvailableCallback(engine.updateAvailableCallback);
@@ -123,6 +150,13 @@ public final class ABPEngine
 
   public void dispose()
   {
+    this.updateScheduler.shutdown();
+    if (this.elementHidingStore != null)
+    {
+      this.elementHidingStore.shutdown();
+      this.elementHidingStore = null;
+    }
+
     // Safe disposing (just in case)
     if (this.filterEngine != null)
     {
@@ -196,12 +230,28 @@ public final class ABPEngine
 
   public org.adblockplus.android.Subscription[] getRecommendedSubscriptions()
   {
-    return convertJsSubscriptions(this.filterEngine.fetchAvailableSubscriptions());
+    final DisposableScope scope = DisposableScope.open();
+    try
+    {
+      return convertJsSubscriptions(this.filterEngine.fetchAvailableSubscriptions());
+    }
+    finally
+    {
+      scope.close();
+    }
   }
 
   public org.adblockplus.android.Subscription[] getListedSubscriptions()
   {
-    return convertJsSubscriptions(this.filterEngine.getListedSubscriptions());
+    final DisposableScope scope = DisposableScope.open();
+    try
+    {
+      return convertJsSubscriptions(this.filterEngine.getListedSubscriptions());
+    }
+    finally
+    {
+      scope.close();
+    }
   }
 
   public void setSubscription(final String url)
@@ -220,10 +270,78 @@ public final class ABPEngine
 
   public void refreshSubscriptions()
   {
-    for (final Subscription s : this.filterEngine.getListedSubscriptions())
+    final String exceptionsUrl = this.filterEngine.getPref("subscriptions_exceptionsurl").toString();
+    final List<Subscription> subscriptions = this.filterEngine.getListedSubscriptions();
+    final List<String> primaryUrls = new ArrayList<String>();
+    for (final Subscription s : subscriptions)
     {
-      s.updateFilters();
+      final String url = s.getProperty("url").toString();
+      if (!url.equals(exceptionsUrl))
+      {
+        primaryUrls.add(url);
+      }
+    }
+    this.updateScheduler.scheduleUpdates(subscriptions, primaryUrls);
+  }
+
+  /**
+   * Tells the element hiding store which subscriptions are listed, must be
+   * called whenever the listed subscriptions change.
+   */
+  public void updateElementHidingSubscriptions()
+  {
+    final List<String> urls = new ArrayList<String>();
+    final DisposableScope scope = DisposableScope.open();
+    try
+    {
+      for (final Subscription s : this.filterEngine.getListedSubscriptions())
+      {
+        urls.add(s.getProperty("url").toString());
+      }
     }
+    finally
+    {
+      scope.close();
+    }
+    this.elementHidingStore.setSubscriptions(urls);
+  }
+
+  /**
+   * Returns the element hiding selectors for a page, unless an
+   * {@code $elemhide} exception applies to it.
+   *
+   * @param url
+   *          Page URL
+   * @param host
+   *          Page host name
+   * @return selectors or {@code null} if there are none
+   */
+  public String[] getSelectorsForDomain(final String url, final String host)
+  {
+    final String[] selectors = this.elementHidingStore.getSelectorsForDomain(host);
+    if (selectors == null)
+    {
+      return null;
+    }
+
+    final DisposableScope scope = DisposableScope.open();
+    try
+    {
+      final Filter filter = this.filterEngine.matches(url, ContentType.ELEMHIDE, new String[0]);
+      return filter != null && filter.getType() == Filter.Type.EXCEPTION ? null : selectors;
+    }
+    finally
+    {
+      scope.close();
+    }
+  }
+
+  /**
+   * @return approximate number of bytes used by the element hiding selectors
+   */
+  public long getElementHidingMemoryUsage()
+  {
+    return this.elementHidingStore.getMemoryUsage();
   }
 
   public void setAcceptableAdsEnabled(final boolean enabled)
@@ -250,22 +368,72 @@ public final class ABPEngine
 
   public boolean matches(final String fullUrl, final ContentType contentType, final String[] referrerChainArray)
   {
-    final Filter filter = this.filterEngine.matches(fullUrl, contentType, referrerChainArray);
+    // The filter and its properties are only needed for the decision
+    final DisposableScope scope = DisposableScope.open();
+    try
+    {
+      final Filter filter = this.filterEngine.matches(fullUrl, contentType, referrerChainArray);
+
+      if (filter == null)
+      {
+        return false;
+      }
+
+      // hack: if there is no referrer, block only if filter is domain-specific
+      // (to re-enable in-app ads blocking, proposed on 12.11.2012 Monday meeting)
+      // (documentUrls contains the referrers on Android)
+      if (referrerChainArray.length == 0 && (filter.getProperty("text").toString()).contains("||"))
+      {
+        return false;
+      }
 
-    if (filter == null)
+      return filter.getType() != Filter.Type.EXCEPTION;
+    }
+    finally
     {
-      return false;
+      scope.close();
     }
+  }
 
-    // hack: if there is no referrer, block only if filter is domain-specific
-    // (to re-enable in-app ads blocking, proposed on 12.11.2012 Monday meeting)
-    // (documentUrls contains the referrers on Android)
-    if (referrerChainArray.length == 0 && (filter.getProperty("text").toString()).contains("||"))
+  /**
+   * Computes a hash of the listed subscriptions and their download state,
+   * which changes whenever decisions made with the current filters might
+   * become invalid.
+   */
+  public long getFilterStateHash()
+  {
+    final StringBuilder sb = new StringBuilder();
+    final DisposableScope scope = DisposableScope.open();
+    try
+    {
+      for (final Subscription s : this.filterEngine.getListedSubscriptions())
+      {
+        sb.append(s.getProperty("url").toString()).append(' ');
+        sb.append(s.getProperty("version").toString()).append(' ');
+        sb.append(s.getProperty("lastDownload").asLong()).append('\n');
+      }
+    }
+    finally
     {
-      return false;
+      scope.close();
     }
+    return Utils.hash64(sb.toString());
+  }
 
-    return filter.getType() != Filter.Type.EXCEPTION;
+  /**
+   * Changes the minimum level of libadblockplus messages written to the log.
+   */
+  public void setLogLevel(final LogSystem.LogLevel level)
+  {
+    this.logSystem.setMinLogLevel(level);
+  }
+
+  /**
+   * @return number of libadblockplus messages dropped because of their level
+   */
+  public long getSuppressedLogMessageCount()
+  {
+    return this.logSystem.getSuppressedCount();
   }
 
   public void checkForUpdates()
@@ -21,9 +21,26 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.adblockplus.libadblockplus.AdblockPlusException;
 import org.adblockplus.libadblockplus.FilterEngine.ContentType;
 import org.adblockplus.libadblockplus.Notification;
 import org.apache.commons.lang.StringUtils;
@@ -54,11 +71,19 @@ public class AdblockPlus extends Application
 
   private static final String TAG = Utils.getTag(AdblockPlus.class);
 
-  private static final Pattern RE_JS = Pattern.compile("\\.js$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern RE_CSS = Pattern.compile("\\.css$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern RE_IMAGE = Pattern.compile("\\.(?:gif|png|jpe?g|bmp|ico)$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern RE_FONT = Pattern.compile("\\.(?:ttf|woff)$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern RE_HTML = Pattern.compile("\\.html?$", Pattern.CASE_INSENSITIVE);
+  private static final int PREFETCH_QUEUE_SIZE = 128;
+
+  /**
+   * Matches waiting for the match executor, requests beyond that are let
+   * through right away instead of piling up while the engine is stalled.
+   */
+  private static final int MATCH_QUEUE_SIZE = 64;
+
+  /**
+   * Minutes between decision snapshot saves, a snapshot is only written if
+   * decisions have changed.
+   */
+  private static final int SNAPSHOT_INTERVAL = 5;
 
   /**
    * Broadcasted when filtering is enabled or disabled.
@@ -68,6 +93,23 @@ public class AdblockPlus extends Application
    * Broadcasted when subscription status changes.
    */
   public static final String BROADCAST_SUBSCRIPTION_STATUS = "org.adblockplus.android.subscription.status";
+  /**
+   * Defines how requests the decision caches cannot answer are handled while
+   * the filter engine is still loading.
+   */
+  public static enum InterimPolicy
+  {
+    /**
+     * Let requests through unblocked.
+     */
+    PASS_THROUGH,
+    /**
+     * Hold requests until the engine is ready, at most for the matching
+     * deadline.
+     */
+    WAIT
+  }
+
   /**
    * Cached list of recommended subscriptions.
    */
@@ -77,12 +119,88 @@ public class AdblockPlus extends Application
    */
   private boolean filteringEnabled = false;
 
-  private ABPEngine abpEngine;
+  private volatile ABPEngine abpEngine;
+
+  private final Object engineLock = new Object();
+
+  /**
+   * Why the last attempt to load the engine failed, {@code null} if it did
+   * not.
+   */
+  private volatile Throwable engineFailure;
+
+  /**
+   * Released when the engine being loaded in background is ready,
+   * {@code null} if no engine is loading.
+   */
+  private CountDownLatch engineLoading;
+
+  private volatile InterimPolicy interimPolicy = InterimPolicy.WAIT;
+
+  private volatile long engineStartupTime = -1;
+
+  private static final AtomicLong INTERIM_REQUESTS = new AtomicLong();
 
   private static AdblockPlus instance;
 
   private final ReferrerMapping referrerMapping = new ReferrerMapping();
 
+  private final ContentTypeClassifier contentTypeClassifier = new ContentTypeClassifier();
+
+  private final DecisionCache decisionCache = new DecisionCache();
+
+  /**
+   * Decisions persisted by a previous run, {@code null} if there are none or
+   * they turned out to be stale.
+   */
+  private volatile DecisionSnapshot decisionSnapshot;
+
+  /**
+   * Filter state hash of the current engine, {@code null} while it is not
+   * known, e.g. right after filters changed. Computed on the snapshot
+   * executor, so that saving a snapshot does not need the engine.
+   */
+  private volatile Long filterStateHash;
+
+  /**
+   * Validates and saves decision snapshots.
+   */
+  private final ScheduledExecutorService snapshotExecutor = Executors.newSingleThreadScheduledExecutor(Utils.newDaemonThreadFactory("SnapshotExecutor"));
+
+  private final Object snapshotLock = new Object();
+
+  private long savedModificationCount = -1;
+
+  private final AtomicLong snapshotHits = new AtomicLong();
+
+  /**
+   * Runs filter matches which have to finish within a deadline. The filter
+   * engine serializes calls anyway, so a single thread is enough.
+   */
+  private final ThreadPoolExecutor matchExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(MATCH_QUEUE_SIZE), Utils.newDaemonThreadFactory("MatchExecutor"));
+
+  /**
+   * Matches still running, used to join concurrent requests for the same
+   * resource instead of queuing them again.
+   */
+  private final ConcurrentHashMap<String, MatchTask> pendingMatches = new ConcurrentHashMap<String, MatchTask>();
+
+  /**
+   * Evaluates subresources found in documents before they are requested.
+   * Separate from the match executor so that live requests never queue
+   * behind speculative work, excess work is dropped.
+   */
+  private final ThreadPoolExecutor prefetchExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE_SIZE), Utils.newDaemonThreadFactory("PrefetchExecutor"));
+
+  private final AtomicLong prefetchEvaluations = new AtomicLong();
+  private final AtomicLong prefetchDropped = new AtomicLong();
+
+  private static final AtomicLong FAIL_OPEN_REQUESTS = new AtomicLong();
+  private static final AtomicLong FAIL_OPEN_MISSED_BLOCKS = new AtomicLong();
+  private static final AtomicLong MATCHES_DROPPED = new AtomicLong();
+
   /**
    * Returns pointer to itself (singleton pattern).
    */
@@ -189,7 +307,7 @@ public class AdblockPlus extends Application
 
   public boolean isFirstRun()
   {
-    return abpEngine.isFirstRun();
+    return requireEngine().isFirstRun();
   }
 
   /**
@@ -198,7 +316,7 @@ public class AdblockPlus extends Application
   public Subscription[] getRecommendedSubscriptions()
   {
     if (subscriptions == null)
-      subscriptions = abpEngine.getRecommendedSubscriptions();
+      subscriptions = requireEngine().getRecommendedSubscriptions();
     return subscriptions;
   }
 
@@ -207,7 +325,7 @@ public class AdblockPlus extends Application
    */
   public Subscription[] getListedSubscriptions()
   {
-    return abpEngine.getListedSubscriptions();
+    return requireEngine().getListedSubscriptions();
   }
 
   /**
@@ -218,7 +336,7 @@ public class AdblockPlus extends Application
    */
   public void setSubscription(final String url)
   {
-    abpEngine.setSubscription(url);
+    requireEngine().setSubscription(url);
   }
 
   /**
@@ -226,7 +344,7 @@ public class AdblockPlus extends Application
    */
   public void refreshSubscriptions()
   {
-    abpEngine.refreshSubscriptions();
+    requireEngine().refreshSubscriptions();
   }
 
   /**
@@ -236,7 +354,7 @@ public class AdblockPlus extends Application
    */
   public void updateSubscriptionStatus(final String url)
   {
-    abpEngine.updateSubscriptionStatus(url);
+    requireEngine().updateSubscriptionStatus(url);
   }
 
   /**
@@ -244,12 +362,12 @@ public class AdblockPlus extends Application
    */
   public void setAcceptableAdsEnabled(final boolean enabled)
   {
-    abpEngine.setAcceptableAdsEnabled(enabled);
+    requireEngine().setAcceptableAdsEnabled(enabled);
   }
 
   public String getAcceptableAdsUrl()
   {
-    final String documentationLink = abpEngine.getDocumentationLink();
+    final String documentationLink = requireEngine().getDocumentationLink();
     final String locale = getResources().getConfiguration().locale.toString().replace("_", "-");
     return documentationLink.replace("%LINK%", "acceptable_ads").replace("%LANG%", locale);
   }
@@ -271,25 +389,23 @@ public class AdblockPlus extends Application
   /**
    * Returns ElemHide selectors for domain.
    *
+   * @param url The page URL
    * @param domain The domain
    * @return A list of CSS selectors
    */
-  public String[] getSelectorsForDomain(final String domain)
+  public String[] getSelectorsForDomain(final String url, final String domain)
   {
-    /* We need to ignore element hiding rules here to work around two bugs:
-     * 1. CSS is being injected even when there's an exception rule with $elemhide
-     * 2. The injected CSS causes blank pages in Chrome for Android
-     *
-     * Starting with 1.1.2, we ignored element hiding rules after download anyway, to keep the
-     * memory usage down. Doing this with libadblockplus is trickier, but would be the clean
-     * solution. */
-    return null;
-/*
-    if (!filteringEnabled)
+    /* Element hiding stays opt-in, because the injected CSS causes blank
+     * pages in Chrome for Android. */
+    final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+    if (!preferences.getBoolean(getString(R.string.pref_elemhide), getResources().getBoolean(R.bool.def_elemhide)))
+      return null;
+
+    final ABPEngine engine = abpEngine;
+    if (!filteringEnabled || engine == null)
       return null;
 
-    return abpEngine.getSelectorsForDomain(domain);
-*/
+    return engine.getSelectorsForDomain(url, domain);
   }
 
   /**
@@ -308,44 +424,425 @@ public class AdblockPlus extends Application
    */
   public boolean matches(final String url, final String query, final String referrer, final String accept)
   {
-    final String fullUrl = StringUtils.isNotEmpty(query) ? url + "?" + query : url;
+    return matches(url, query, referrer, accept, 0);
+  }
+
+  /**
+   * Checks if filters match request parameters, giving up after the given
+   * timeout. If the filter engine does not answer in time the request is
+   * not blocked (fail-open) while matching continues in background so that
+   * the decision is cached for subsequent requests.
+   *
+   * @param url
+   *          Request URL
+   * @param query
+   *          Request query string
+   * @param referrer
+   *          Request referrer header
+   * @param accept
+   *          Request accept header
+   * @param timeout
+   *          Matching deadline in milliseconds, 0 to wait indefinitely
+   * @return true if matched filter was found
+   */
+  public boolean matches(final String url, final String query, final String referrer, final String accept, final long timeout)
+  {
+    return matches(new UrlParts(url, query), referrer, accept, timeout);
+  }
+
+  /**
+   * Checks if filters match request parameters, see
+   * {@link #matches(String, String, String, String, long)}.
+   *
+   * @param urlParts
+   *          Request URL as parsed by the caller
+   */
+  public boolean matches(final UrlParts urlParts, final String referrer, final String accept, final long timeout)
+  {
+    final String url = urlParts.getUrl();
+    final String fullUrl = urlParts.getFullUrl();
     if (referrer != null)
       referrerMapping.add(fullUrl, referrer);
 
     if (!filteringEnabled)
       return false;
 
-    ContentType contentType = null;
+    final ContentType contentType = contentTypeClassifier.classify(url, accept);
 
-    if (accept != null)
+    final String key = DecisionCache.createKey(fullUrl, contentType, referrer);
+    final Boolean cached = decisionCache.get(key);
+    if (cached != null)
+      return cached.booleanValue();
+
+    final DecisionSnapshot snapshot = decisionSnapshot;
+    if (snapshot != null)
     {
-      if (accept.contains("text/css"))
-        contentType = ContentType.STYLESHEET;
-      else if (accept.contains("image/*"))
-        contentType = ContentType.IMAGE;
-      else if (accept.contains("text/html"))
-        contentType = ContentType.SUBDOCUMENT;
+      final Boolean persisted = snapshot.lookup(key);
+      if (persisted != null)
+      {
+        snapshotHits.incrementAndGet();
+        decisionCache.put(key, persisted.booleanValue());
+        return persisted.booleanValue();
+      }
     }
 
-    if (contentType == null)
+    long remaining = timeout;
+    ABPEngine engine = abpEngine;
+    if (engine == null)
     {
-      if (RE_JS.matcher(url).find())
-        contentType = ContentType.SCRIPT;
-      else if (RE_CSS.matcher(url).find())
-        contentType = ContentType.STYLESHEET;
-      else if (RE_IMAGE.matcher(url).find())
-        contentType = ContentType.IMAGE;
-      else if (RE_FONT.matcher(url).find())
-        contentType = ContentType.FONT;
-      else if (RE_HTML.matcher(url).find())
-        contentType = ContentType.SUBDOCUMENT;
+      final long start = System.currentTimeMillis();
+      if (interimPolicy == InterimPolicy.WAIT && awaitEngine(timeout))
+        engine = abpEngine;
+      if (timeout > 0)
+        remaining -= System.currentTimeMillis() - start;
+
+      if (engine == null || (timeout > 0 && remaining <= 0))
+      {
+        INTERIM_REQUESTS.incrementAndGet();
+        return false;
+      }
     }
-    if (contentType == null)
-      contentType = ContentType.OTHER;
 
     final List<String> referrerChain = referrerMapping.buildReferrerChain(referrer);
     final String[] referrerChainArray = referrerChain.toArray(new String[referrerChain.size()]);
-    return abpEngine.matches(fullUrl, contentType, referrerChainArray);
+
+    if (timeout <= 0)
+    {
+      final boolean block = engine.matches(fullUrl, contentType, referrerChainArray);
+      decisionCache.put(key, block);
+      return block;
+    }
+
+    MatchTask task = new MatchTask(key, fullUrl, contentType, referrerChainArray);
+    final MatchTask pending = pendingMatches.putIfAbsent(key, task);
+    if (pending != null)
+    {
+      task = pending;
+    }
+    else
+    {
+      try
+      {
+        matchExecutor.execute(task);
+      }
+      catch (final RejectedExecutionException e)
+      {
+        pendingMatches.remove(key, task);
+        MATCHES_DROPPED.incrementAndGet();
+        FAIL_OPEN_REQUESTS.incrementAndGet();
+        return false;
+      }
+    }
+
+    try
+    {
+      return task.get(remaining, TimeUnit.MILLISECONDS).booleanValue();
+    }
+    catch (final TimeoutException e)
+    {
+      if (!task.failOpen())
+      {
+        // Finished right after the deadline, the decision is being stored
+        try
+        {
+          return task.get().booleanValue();
+        }
+        catch (final InterruptedException ie)
+        {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+        catch (final ExecutionException ee)
+        {
+          throw new AdblockPlusException("Filter matching failed", ee.getCause());
+        }
+      }
+      FAIL_OPEN_REQUESTS.incrementAndGet();
+      Log.w(TAG, "Filter matching exceeded " + timeout + " ms, not blocking " + fullUrl);
+      return false;
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    catch (final ExecutionException e)
+    {
+      throw new AdblockPlusException("Filter matching failed", e.getCause());
+    }
+  }
+
+  /**
+   * @return number of requests let through because filter matching did not
+   *         finish within the deadline
+   */
+  public static long getFailOpenRequestCount()
+  {
+    return FAIL_OPEN_REQUESTS.get();
+  }
+
+  /**
+   * @return number of requests let through because the filter engine was
+   *         still loading
+   */
+  public static long getInterimRequestCount()
+  {
+    return INTERIM_REQUESTS.get();
+  }
+
+  /**
+   * Sets how requests are handled while the filter engine is loading.
+   */
+  public void setInterimPolicy(final InterimPolicy policy)
+  {
+    interimPolicy = policy;
+  }
+
+  /**
+   * @return milliseconds it took to load the filter engine the last time, -1
+   *         if it has not been loaded yet
+   */
+  public long getEngineStartupTime()
+  {
+    return engineStartupTime;
+  }
+
+  /**
+   * @return number of fail-open requests which turned out to match a blocking
+   *         filter once matching finished
+   */
+  public static long getFailOpenMissedBlockCount()
+  {
+    return FAIL_OPEN_MISSED_BLOCKS.get();
+  }
+
+  /**
+   * @return number of requests let through without matching because too
+   *         many matches were queued
+   */
+  public static long getDroppedMatchCount()
+  {
+    return MATCHES_DROPPED.get();
+  }
+
+  /**
+   * Computes and caches the blocking decision for a subresource found in a
+   * document, ahead of the browser requesting it. Returns immediately, the
+   * work is done in background.
+   *
+   * @param documentUrl
+   *          URL of the document, used as referrer, may be {@code null} if
+   *          {@code url} is absolute
+   * @param url
+   *          Subresource URL as found in the document, possibly relative
+   * @param accept
+   *          Accept header the browser is expected to send
+   */
+  public void prefetchDecision(final String documentUrl, final String url, final String accept)
+  {
+    if (!filteringEnabled)
+      return;
+
+    try
+    {
+      prefetchExecutor.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          evaluatePrefetch(documentUrl, url, accept);
+        }
+      });
+    }
+    catch (final RejectedExecutionException e)
+    {
+      prefetchDropped.incrementAndGet();
+    }
+  }
+
+  private void evaluatePrefetch(final String documentUrl, final String url, final String accept)
+  {
+    String fullUrl;
+    try
+    {
+      fullUrl = documentUrl != null ? new URL(new URL(documentUrl), url).toString() : new URL(url).toString();
+    }
+    catch (final MalformedURLException e)
+    {
+      return;
+    }
+    if (!fullUrl.startsWith("http"))
+      return;
+
+    final int fragment = fullUrl.indexOf('#');
+    if (fragment >= 0)
+      fullUrl = fullUrl.substring(0, fragment);
+    final int query = fullUrl.indexOf('?');
+    final String path = query >= 0 ? fullUrl.substring(0, query) : fullUrl;
+
+    final ContentType contentType = contentTypeClassifier.classify(path, accept);
+    final String key = DecisionCache.createKey(fullUrl, contentType, documentUrl);
+    if (decisionCache.contains(key))
+      return;
+
+    final ABPEngine engine = abpEngine;
+    if (engine == null || !filteringEnabled)
+      return;
+
+    final List<String> referrerChain = referrerMapping.buildReferrerChain(documentUrl);
+    final String[] referrerChainArray = referrerChain.toArray(new String[referrerChain.size()]);
+    try
+    {
+      decisionCache.putPrefetched(key, engine.matches(fullUrl, contentType, referrerChainArray));
+      prefetchEvaluations.incrementAndGet();
+    }
+    catch (final Exception e)
+    {
+      Log.e(TAG, "Failed to prefetch decision for " + fullUrl, e);
+    }
+  }
+
+  /**
+   * @return number of subresource decisions computed ahead of time
+   */
+  public long getPrefetchEvaluationCount()
+  {
+    return prefetchEvaluations.get();
+  }
+
+  /**
+   * @return number of prefetched decisions used by a subsequent request
+   */
+  public long getPrefetchHitCount()
+  {
+    return decisionCache.getPrefetchHitCount();
+  }
+
+  /**
+   * @return number of prefetched decisions evicted or invalidated without
+   *         being used
+   */
+  public long getPrefetchWastedCount()
+  {
+    return decisionCache.getPrefetchWastedCount();
+  }
+
+  /**
+   * @return number of subresources not evaluated because too many were
+   *         pending
+   */
+  public long getPrefetchDroppedCount()
+  {
+    return prefetchDropped.get();
+  }
+
+  /**
+   * Forgets cached blocking decisions, has to be called whenever filters
+   * change.
+   */
+  public void invalidateDecisions()
+  {
+    decisionCache.clear();
+    filterStateHash = null;
+    final ABPEngine engine = abpEngine;
+    if (engine != null)
+    {
+      snapshotExecutor.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          engine.updateElementHidingSubscriptions();
+          validateDecisionSnapshot();
+        }
+      });
+    }
+  }
+
+  /**
+   * @return number of requests answered from the persisted decision snapshot
+   */
+  public long getSnapshotHitCount()
+  {
+    return snapshotHits.get();
+  }
+
+  private long getFilterStateHash(final ABPEngine engine)
+  {
+    return engine.getFilterStateHash() * 31 + getBuildNumber();
+  }
+
+  /**
+   * Updates the filter state hash and drops the persisted decisions if
+   * filters have changed since they were saved.
+   */
+  private void validateDecisionSnapshot()
+  {
+    final ABPEngine engine = abpEngine;
+    if (engine == null)
+      return;
+
+    try
+    {
+      final long hash = getFilterStateHash(engine);
+      filterStateHash = Long.valueOf(hash);
+      final DecisionSnapshot snapshot = decisionSnapshot;
+      if (snapshot != null && snapshot.getFilterStateHash() != hash)
+      {
+        decisionSnapshot = null;
+        Log.i(TAG, "Filters changed, dropped decision snapshot");
+      }
+    }
+    catch (final Exception e)
+    {
+      Log.e(TAG, "Failed to validate decision snapshot", e);
+    }
+  }
+
+  /**
+   * Persists cached decisions, along with still valid decisions of the
+   * previous snapshot, so that they are available right after a restart.
+   */
+  private void saveDecisionSnapshot()
+  {
+    final Long hash = filterStateHash;
+    if (hash == null)
+      return;
+    saveDecisionSnapshot(hash.longValue(), decisionCache.getModificationCount(), decisionCache.getDecisions());
+  }
+
+  private void saveDecisionSnapshot(final long hash, final long modificationCount, final Map<String, Boolean> decisions)
+  {
+    synchronized (snapshotLock)
+    {
+      if (modificationCount == savedModificationCount)
+        return;
+
+      try
+      {
+        DecisionSnapshot.save(new File(getFilesDir(), DecisionSnapshot.FILE_NAME), hash, decisions,
+            decisionSnapshot);
+        savedModificationCount = modificationCount;
+      }
+      catch (final Exception e)
+      {
+        Log.e(TAG, "Failed to save decision snapshot", e);
+      }
+    }
+  }
+
+  /**
+   * Remembers the content type returned by the server, so that later requests
+   * to the same URL can be classified even without a file extension.
+   *
+   * @param url
+   *          Request URL without query string
+   * @param contentType
+   *          Response Content-Type header
+   */
+  public void learnContentType(final String url, final String contentType)
+  {
+    contentTypeClassifier.learn(url, contentType);
   }
 
   /**
@@ -366,28 +863,167 @@ public class AdblockPlus extends Application
   }
 
   /**
-   * Starts ABP engine. It also initiates subscription refresh if it is enabled
-   * in user settings.
+   * Starts ABP engine and waits for it to be ready. It also initiates
+   * subscription refresh if it is enabled in user settings.
    */
   public void startEngine()
   {
-    if (abpEngine == null)
+    startEngineAsync();
+    if (!awaitEngine(0))
+    {
+      final Throwable failure = engineFailure;
+      if (failure instanceof RuntimeException)
+        throw (RuntimeException) failure;
+      if (failure instanceof Error)
+        throw (Error) failure;
+      throw new AdblockPlusException("Failed to start filter engine", failure);
+    }
+  }
+
+  /**
+   * Starts loading ABP engine in background and returns immediately. Until
+   * the engine is ready requests are handled according to the interim
+   * policy, see {@link #setInterimPolicy(InterimPolicy)}.
+   */
+  public void startEngineAsync()
+  {
+    synchronized (engineLock)
+    {
+      if (abpEngine != null || engineLoading != null)
+        return;
+
+      final CountDownLatch latch = new CountDownLatch(1);
+      engineLoading = latch;
+      engineFailure = null;
+
+      final Thread thread = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            loadEngine();
+          }
+          catch (final Throwable t)
+          {
+            Log.e(TAG, "Failed to start filter engine", t);
+            engineFailure = t;
+          }
+          finally
+          {
+            synchronized (engineLock)
+            {
+              engineLoading = null;
+            }
+            latch.countDown();
+          }
+        }
+      });
+      thread.setName("EngineLoader");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  private void loadEngine()
+  {
+    final File basePath = getFilesDir();
+
+    final long start = System.currentTimeMillis();
+    decisionSnapshot = DecisionSnapshot.load(new File(basePath, DecisionSnapshot.FILE_NAME));
+    final long snapshotLoaded = System.currentTimeMillis();
+    if (decisionSnapshot != null)
+      Log.i(TAG, "Loaded " + decisionSnapshot.size() + " decisions in " + (snapshotLoaded - start) + " ms");
+
+    final ABPEngine engine = ABPEngine.create(AdblockPlus.getApplication(), ABPEngine.generateAppInfo(this), basePath.getAbsolutePath());
+    final long engineCreated = System.currentTimeMillis();
+
+    // From now on requests are matched by the engine
+    abpEngine = engine;
+    validateDecisionSnapshot();
+
+    engineStartupTime = System.currentTimeMillis() - start;
+    Log.i(TAG, "Engine ready after " + engineStartupTime + " ms (snapshot " + (snapshotLoaded - start)
+        + " ms, engine " + (engineCreated - snapshotLoaded) + " ms)");
+  }
+
+  /**
+   * Waits for the engine being loaded in background.
+   *
+   * @param timeout
+   *          Milliseconds to wait at most, 0 to wait indefinitely
+   * @return true if the engine is ready
+   */
+  private boolean awaitEngine(final long timeout)
+  {
+    final CountDownLatch latch;
+    synchronized (engineLock)
+    {
+      latch = engineLoading;
+    }
+
+    if (latch != null)
     {
-      final File basePath = getFilesDir();
-      abpEngine = ABPEngine.create(AdblockPlus.getApplication(), ABPEngine.generateAppInfo(this), basePath.getAbsolutePath());
+      try
+      {
+        if (timeout > 0)
+          latch.await(timeout, TimeUnit.MILLISECONDS);
+        else
+          latch.await();
+      }
+      catch (final InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
     }
+    return abpEngine != null;
   }
 
   /**
-   * Stops ABP engine.
+   * @return the loaded engine
+   * @throws AdblockPlusException
+   *           if the engine has not been started or failed to load
+   */
+  private ABPEngine requireEngine()
+  {
+    final ABPEngine engine = abpEngine;
+    if (engine == null)
+      throw new AdblockPlusException("Filter engine not available", engineFailure);
+    return engine;
+  }
+
+  /**
+   * Stops ABP engine. The decisions cached so far are saved in background.
    */
   public void stopEngine()
   {
-    if (abpEngine != null)
+    awaitEngine(0);
+    synchronized (engineLock)
     {
-      abpEngine.dispose();
-      abpEngine = null;
-      Log.i(TAG, "stopEngine");
+      if (abpEngine != null)
+      {
+        final ABPEngine engine = abpEngine;
+        final Long hash = filterStateHash;
+        if (hash != null)
+        {
+          final long modificationCount = decisionCache.getModificationCount();
+          final Map<String, Boolean> decisions = decisionCache.getDecisions();
+          snapshotExecutor.execute(new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              saveDecisionSnapshot(hash.longValue(), modificationCount, decisions);
+            }
+          });
+        }
+        abpEngine = null;
+        filterStateHash = null;
+        engine.dispose();
+        decisionCache.clear();
+        Log.i(TAG, "stopEngine");
+      }
     }
   }
 
@@ -397,7 +1033,7 @@ public class AdblockPlus extends Application
    */
   public Notification getNextNotificationToShow(String url)
   {
-    return this.abpEngine.getNextNotificationToShow(url);
+    return requireEngine().getNextNotificationToShow(url);
   }
 
   /**
@@ -405,7 +1041,7 @@ public class AdblockPlus extends Application
    */
   public Notification getNextNotificationToShow()
   {
-    return this.abpEngine.getNextNotificationToShow();
+    return requireEngine().getNextNotificationToShow();
   }
 
   /**
@@ -413,7 +1049,68 @@ public class AdblockPlus extends Application
    */
   public void checkUpdates()
   {
-    abpEngine.checkForUpdates();
+    requireEngine().checkForUpdates();
+  }
+
+  /**
+   * Filter match running on the match executor, caches its decision when
+   * done.
+   */
+  private final class MatchTask extends FutureTask<Boolean>
+  {
+    private static final int RUNNING = 0;
+    private static final int FAILED_OPEN = 1;
+    private static final int DONE = 2;
+
+    private final String key;
+
+    /**
+     * Decides atomically whether a waiting request gave up before the
+     * decision was available.
+     */
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+    public MatchTask(final String key, final String fullUrl, final ContentType contentType, final String[] referrerChainArray)
+    {
+      super(new Callable<Boolean>()
+      {
+        @Override
+        public Boolean call() throws Exception
+        {
+          final ABPEngine engine = abpEngine;
+          if (engine == null)
+            throw new IllegalStateException("Filter engine is not running");
+          return Boolean.valueOf(engine.matches(fullUrl, contentType, referrerChainArray));
+        }
+      });
+      this.key = key;
+    }
+
+    /**
+     * Marks the request waiting for this match as let through.
+     *
+     * @return false if the match has completed meanwhile, its decision has to
+     *         be used then
+     */
+    boolean failOpen()
+    {
+      return state.compareAndSet(RUNNING, FAILED_OPEN) || state.get() == FAILED_OPEN;
+    }
+
+    @Override
+    protected void set(final Boolean block)
+    {
+      decisionCache.put(key, block.booleanValue());
+      if (state.getAndSet(DONE) == FAILED_OPEN && block.booleanValue())
+        FAIL_OPEN_MISSED_BLOCKS.incrementAndGet();
+      super.set(block);
+    }
+
+    @Override
+    protected void done()
+    {
+      pendingMatches.remove(key, this);
+    }
   }
 
   @Override
@@ -456,5 +1153,14 @@ public class AdblockPlus extends Application
 
     // Set crash handler
     Thread.setDefaultUncaughtExceptionHandler(new CrashHandler(this));
+
+    snapshotExecutor.scheduleWithFixedDelay(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        saveDecisionSnapshot();
+      }
+    }, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MINUTES);
   }
 }
@@ -17,16 +17,71 @@
 
 package org.adblockplus.android;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.adblockplus.libadblockplus.DisposableScope;
 import org.adblockplus.libadblockplus.FilterChangeCallback;
 import org.adblockplus.libadblockplus.JsValue;
 import org.adblockplus.libadblockplus.Subscription;
 
 import android.content.Context;
 
+/**
+ * Receives filter change events from the engine. Subscription updates
+ * produce bursts of events, so they are coalesced: cached decisions are
+ * invalidated once when a burst ends, and only the latest status of each
+ * subscription is broadcast.
+ */
 public class AndroidFilterChangeCallback extends FilterChangeCallback
 {
+  /**
+   * Events after which cached blocking decisions may be stale.
+   */
+  private static final Set<String> FILTER_ACTIONS = new HashSet<String>(Arrays.asList(
+      "load", "filter.added", "filter.removed", "filter.disabled", "filter.moved",
+      "subscription.added", "subscription.removed", "subscription.disabled", "subscription.updated"));
+
+  /**
+   * Milliseconds to collect events for after the first event of a burst.
+   */
+  private static final long COALESCE_WINDOW = 250;
+
+  private static final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(
+      Utils.newDaemonThreadFactory("FilterChangeDispatcher"));
+
+  private static final AtomicLong RAW_EVENTS = new AtomicLong();
+  private static final AtomicLong DELIVERED_EVENTS = new AtomicLong();
+  private static final AtomicLong INVALIDATIONS = new AtomicLong();
+
   private final Context context;
 
+  /**
+   * Latest state of each subscription that changed during the current burst,
+   * guarded by {@code this}.
+   */
+  private final Map<String, Subscription> pendingSubscriptions = new LinkedHashMap<String, Subscription>();
+  private boolean burstActive = false;
+  private boolean filtersChanged = false;
+
+  private final Runnable flushTask = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      flush();
+    }
+  };
+
   public AndroidFilterChangeCallback(final Context context)
   {
     this.context = context;
@@ -35,11 +90,103 @@ public class AndroidFilterChangeCallback extends FilterChangeCallback
   @Override
   public void filterChangeCallback(final String action, final JsValue jsValue)
   {
-    if (action.equals("subscription.lastDownload") || action.equals("subscription.downloadStatus"))
+    RAW_EVENTS.incrementAndGet();
+
+    final boolean filterAction = FILTER_ACTIONS.contains(action);
+    final boolean statusAction = action.equals("subscription.lastDownload") || action.equals("subscription.downloadStatus");
+    if (!filterAction && !statusAction)
+      return;
+
+    Subscription subscription = null;
+    String url = null;
+    if (statusAction)
+    {
+      // Kept until the burst is flushed, possibly past a scope of this thread
+      subscription = DisposableScope.keep(new Subscription(jsValue));
+      url = subscription.getProperty("url").toString();
+    }
+
+    Subscription replaced = null;
+    synchronized (this)
+    {
+      if (!burstActive)
+      {
+        burstActive = true;
+        dispatcher.schedule(flushTask, COALESCE_WINDOW, TimeUnit.MILLISECONDS);
+      }
+      if (filterAction)
+      {
+        filtersChanged = true;
+      }
+
+      if (subscription != null)
+        replaced = pendingSubscriptions.put(url, subscription);
+    }
+
+    if (replaced != null)
+      replaced.dispose();
+  }
+
+  private void flush()
+  {
+    final boolean invalidate;
+    final List<Subscription> subscriptions;
+    synchronized (this)
     {
-      final Subscription sub = new Subscription(jsValue);
+      invalidate = filtersChanged;
+      subscriptions = new ArrayList<Subscription>(pendingSubscriptions.values());
+      pendingSubscriptions.clear();
+      filtersChanged = false;
+      burstActive = false;
+    }
 
-      Utils.updateSubscriptionStatus(this.context, sub);
+    if (invalidate)
+      invalidateDecisions();
+
+    for (final Subscription subscription : subscriptions)
+    {
+      try
+      {
+        Utils.updateSubscriptionStatus(this.context, subscription);
+        DELIVERED_EVENTS.incrementAndGet();
+      }
+      finally
+      {
+        subscription.dispose();
+      }
     }
   }
+
+  private static void invalidateDecisions()
+  {
+    INVALIDATIONS.incrementAndGet();
+    final AdblockPlus application = AdblockPlus.getApplication();
+    if (application != null)
+      application.invalidateDecisions();
+  }
+
+  /**
+   * @return number of filter change events received from the engine
+   */
+  public static long getRawEventCount()
+  {
+    return RAW_EVENTS.get();
+  }
+
+  /**
+   * @return number of status broadcasts the raw events were coalesced into
+   */
+  public static long getDeliveredEventCount()
+  {
+    return DELIVERED_EVENTS.get();
+  }
+
+  /**
+   * @return number of times cached decisions were invalidated, at most once
+   *         per burst
+   */
+  public static long getInvalidationCount()
+  {
+    return INVALIDATIONS.get();
+  }
 }
@@ -18,11 +18,26 @@
 package org.adblockplus.android;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
 
 import org.adblockplus.libadblockplus.AdblockPlusException;
 import org.adblockplus.libadblockplus.FilterEngine;
@@ -37,19 +52,82 @@ public class AndroidWebRequest extends WebRequest
 {
   public final static String TAG = Utils.getTag(WebRequest.class);
 
+  private static final int BUFFER_SIZE = 8192;
+
+  /**
+   * Download statistics of a single URL.
+   */
+  public static final class DownloadStatistics
+  {
+    public int downloads;
+    public int notModified;
+    public long bytes;
+    public long lastBytes;
+    public long lastDuration;
+
+    private DownloadStatistics copy()
+    {
+      final DownloadStatistics copy = new DownloadStatistics();
+      copy.downloads = this.downloads;
+      copy.notModified = this.notModified;
+      copy.bytes = this.bytes;
+      copy.lastBytes = this.lastBytes;
+      copy.lastDuration = this.lastDuration;
+      return copy;
+    }
+  }
+
   private final HashSet<String> subscriptionURLs = new HashSet<String>();
 
-  private boolean isListedSubscriptionUrl(final URL url)
+  /**
+   * Directory for subscription bodies and their validators, {@code null} to
+   * always download completely.
+   */
+  private final File cacheDir;
+
+  private final Map<String, DownloadStatistics> statistics = new HashMap<String, DownloadStatistics>();
+
+  /**
+   * Runs downloads on background threads, {@code null} to download on the
+   * calling thread.
+   */
+  private final SubscriptionUpdateScheduler scheduler;
+
+  /**
+   * Receives the element hiding rules stripped from subscriptions,
+   * {@code null} to discard them.
+   */
+  private final ElementHidingStore elementHidingStore;
+
+  private volatile String exceptionsURL;
+
+  public AndroidWebRequest()
   {
-    String toCheck = url.toString();
+    this(null, null, null);
+  }
 
-    final int idx = toCheck.indexOf('?');
-    if (idx != -1)
+  public AndroidWebRequest(final File cacheDir, final SubscriptionUpdateScheduler scheduler,
+      final ElementHidingStore elementHidingStore)
+  {
+    this.cacheDir = cacheDir;
+    this.scheduler = scheduler;
+    this.elementHidingStore = elementHidingStore;
+    if (cacheDir != null && !cacheDir.isDirectory() && !cacheDir.mkdirs())
     {
-      toCheck = toCheck.substring(0, idx);
+      Log.w(TAG, "Failed to create download cache directory " + cacheDir);
     }
+  }
 
-    return this.subscriptionURLs.contains(toCheck);
+  private static String stripQuery(final URL url)
+  {
+    final String str = url.toString();
+    final int idx = str.indexOf('?');
+    return idx != -1 ? str.substring(0, idx) : str;
+  }
+
+  private boolean isListedSubscriptionUrl(final URL url)
+  {
+    return this.subscriptionURLs.contains(stripQuery(url));
   }
 
   protected void updateSubscriptionURLs(final FilterEngine engine)
@@ -58,7 +136,45 @@ public class AndroidWebRequest extends WebRequest
     {
       this.subscriptionURLs.add(s.getProperty("url").toString());
     }
-    this.subscriptionURLs.add(engine.getPref("subscriptions_exceptionsurl").toString());
+    this.exceptionsURL = engine.getPref("subscriptions_exceptionsurl").toString();
+    this.subscriptionURLs.add(this.exceptionsURL);
+  }
+
+  /**
+   * @return copy of the download statistics, keyed by URL without query
+   */
+  public Map<String, DownloadStatistics> getDownloadStatistics()
+  {
+    synchronized (this.statistics)
+    {
+      final Map<String, DownloadStatistics> copy = new HashMap<String, DownloadStatistics>();
+      for (final Map.Entry<String, DownloadStatistics> entry : this.statistics.entrySet())
+      {
+        copy.put(entry.getKey(), entry.getValue().copy());
+      }
+      return copy;
+    }
+  }
+
+  private void recordDownload(final String key, final long bytes, final long time, final boolean notModified)
+  {
+    synchronized (this.statistics)
+    {
+      DownloadStatistics stats = this.statistics.get(key);
+      if (stats == null)
+      {
+        stats = new DownloadStatistics();
+        this.statistics.put(key, stats);
+      }
+      stats.downloads++;
+      if (notModified)
+      {
+        stats.notModified++;
+      }
+      stats.bytes += bytes;
+      stats.lastBytes = bytes;
+      stats.lastDuration = time;
+    }
   }
 
   @Override
@@ -67,66 +183,331 @@ public class AndroidWebRequest extends WebRequest
     try
     {
       final URL url = new URL(urlStr);
-      Log.d(TAG, "Downloading from: " + url);
+      if (this.scheduler == null)
+      {
+        return download(url);
+      }
+
+      final String key = stripQuery(url);
+      final boolean isSubscription = isListedSubscriptionUrl(url);
+      final boolean primary = isSubscription && !key.equals(this.exceptionsURL);
+      try
+      {
+        final ServerResponse response = this.scheduler.download(url, primary, new Callable<ServerResponse>()
+        {
+          @Override
+          public ServerResponse call() throws Exception
+          {
+            return download(url);
+          }
+        });
+        if (isSubscription)
+        {
+          this.scheduler.recordResult(key, response.getStatus() == NsStatus.OK);
+        }
+        return response;
+      }
+      catch (final Exception e)
+      {
+        if (isSubscription)
+        {
+          this.scheduler.recordResult(key, false);
+        }
+        throw e;
+      }
+    }
+    catch (final Throwable t)
+    {
+      throw new AdblockPlusException("WebRequest failed", t);
+    }
+  }
+
+  private ServerResponse download(final URL url) throws IOException
+  {
+    Log.d(TAG, "Downloading from: " + url);
+
+    final long startTime = System.currentTimeMillis();
+    final String key = stripQuery(url);
+    final boolean isSubscription = isListedSubscriptionUrl(url);
+    final CacheEntry cacheEntry = isSubscription && this.cacheDir != null ? new CacheEntry(key) : null;
 
-      final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("GET");
-      connection.connect();
+    final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod("GET");
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    // A 304 response would skip saving the element hiding rules, download the
+    // full list if they are missing
+    if (cacheEntry != null && (this.elementHidingStore == null || this.elementHidingStore.hasRules(key)))
+    {
+      cacheEntry.addValidators(connection);
+    }
+    connection.connect();
+
+    final ServerResponse response = new ServerResponse();
+
+    try
+    {
+      final int responseCode = connection.getResponseCode();
+
+      if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cacheEntry != null && cacheEntry.exists())
+      {
+        // Unchanged, hand the engine the body we stored the last time
+        response.setResponseStatus(200);
+        response.setStatus(NsStatus.OK);
+        response.setResponse(cacheEntry.read());
+        recordDownload(key, 0, System.currentTimeMillis() - startTime, true);
+        Log.d(TAG, "Not modified: '" + url + "'");
+        return response;
+      }
 
-      final ServerResponse response = new ServerResponse();
-      response.setResponseStatus(connection.getResponseCode());
+      response.setResponseStatus(responseCode);
 
-      if (response.getResponseStatus() == 200)
+      if (responseCode == 200)
       {
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
-        final StringBuilder sb = new StringBuilder();
+        final CountingInputStream in = new CountingInputStream(connection.getInputStream());
+        final InputStream decoded = "gzip".equalsIgnoreCase(connection.getContentEncoding())
+            ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(decoded, "UTF-8"), BUFFER_SIZE);
+        final StringBuilder sb = new StringBuilder(Math.max(connection.getContentLength(), BUFFER_SIZE));
+        final List<String> elementHidingRules = new ArrayList<String>();
 
-        if (isListedSubscriptionUrl(url))
+        try
         {
-          Log.d(TAG, "Removing element hiding rules from: '" + url + "'");
+          if (isSubscription)
+          {
+            Log.d(TAG, "Removing element hiding rules from: '" + url + "'");
 
-          String line;
-          while ((line = reader.readLine()) != null)
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+              // We're only appending non-element-hiding filters here.
+              //
+              // See:
+              //      https://issues.adblockplus.org/ticket/303
+              //
+              // Follow-up issue for removing this hack:
+              //      https://issues.adblockplus.org/ticket/1541
+              //
+              // The rules go to the element hiding store instead.
+              //
+              if (line.indexOf('#') == -1)
+              {
+                sb.append(line);
+                sb.append('\n');
+              }
+              else if (ElementHidingStore.isElementHidingRule(line))
+              {
+                elementHidingRules.add(line);
+              }
+            }
+          }
+          else
           {
-            // We're only appending non-element-hiding filters here.
-            //
-            // See:
-            //      https://issues.adblockplus.org/ticket/303
-            //
-            // Follow-up issue for removing this hack:
-            //      https://issues.adblockplus.org/ticket/1541
-            //
-            if (line.indexOf('#') == -1)
+            final char[] buffer = new char[BUFFER_SIZE];
+            int count;
+            while ((count = reader.read(buffer)) != -1)
             {
-              sb.append(line);
-              sb.append('\n');
+              sb.append(buffer, 0, count);
             }
           }
         }
-        else
+        finally
         {
-          int character;
-
-          while ((character = reader.read()) != -1)
-          {
-            sb.append((char) character);
-          }
+          reader.close();
         }
 
-        connection.disconnect();
+        final String body = sb.toString();
+        final long time = System.currentTimeMillis() - startTime;
+        recordDownload(key, in.getCount(), time, false);
+        Log.d(TAG, "Downloaded " + in.getCount() + " bytes in " + time + " ms from: '" + url + "'");
+
+        if (cacheEntry != null)
+        {
+          cacheEntry.write(connection, body);
+        }
+        if (isSubscription && this.elementHidingStore != null)
+        {
+          this.elementHidingStore.setRules(key, elementHidingRules);
+        }
 
         response.setStatus(NsStatus.OK);
-        response.setResponse(sb.toString());
+        response.setResponse(body);
       }
       else
       {
         response.setStatus(NsStatus.ERROR_FAILURE);
       }
-      return response;
     }
-    catch (final Throwable t)
+    finally
     {
-      throw new AdblockPlusException("WebRequest failed", t);
+      connection.disconnect();
+    }
+    return response;
+  }
+
+  /**
+   * Filtered body of a subscription together with the validators the server
+   * sent for it, stored as two files named after the URL hash.
+   */
+  private final class CacheEntry
+  {
+    private final File bodyFile;
+    private final File validatorFile;
+
+    public CacheEntry(final String key)
+    {
+      final String name = Long.toHexString(Utils.hash64(key));
+      this.bodyFile = new File(cacheDir, name + ".txt");
+      this.validatorFile = new File(cacheDir, name + ".etag");
+    }
+
+    public boolean exists()
+    {
+      return this.bodyFile.isFile();
+    }
+
+    /**
+     * Adds If-None-Match/If-Modified-Since headers if a body is cached.
+     */
+    public void addValidators(final HttpURLConnection connection)
+    {
+      if (!exists() || !this.validatorFile.isFile())
+      {
+        return;
+      }
+
+      try
+      {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.validatorFile), "UTF-8"));
+        try
+        {
+          final String etag = reader.readLine();
+          final String lastModified = reader.readLine();
+          if (etag != null && etag.length() > 0)
+          {
+            connection.setRequestProperty("If-None-Match", etag);
+          }
+          if (lastModified != null && lastModified.length() > 0)
+          {
+            connection.setRequestProperty("If-Modified-Since", lastModified);
+          }
+        }
+        finally
+        {
+          reader.close();
+        }
+      }
+      catch (final IOException e)
+      {
+        Log.w(TAG, "Failed to read cached validators", e);
+      }
+    }
+
+    public String read() throws IOException
+    {
+      final Reader reader = new InputStreamReader(new FileInputStream(this.bodyFile), "UTF-8");
+      try
+      {
+        final StringBuilder sb = new StringBuilder((int) this.bodyFile.length());
+        final char[] buffer = new char[BUFFER_SIZE];
+        int count;
+        while ((count = reader.read(buffer)) != -1)
+        {
+          sb.append(buffer, 0, count);
+        }
+        return sb.toString();
+      }
+      finally
+      {
+        reader.close();
+      }
+    }
+
+    /**
+     * Stores the body if the server sent validators, otherwise drops any
+     * cached entry.
+     */
+    public void write(final HttpURLConnection connection, final String body)
+    {
+      final String etag = connection.getHeaderField("ETag");
+      final String lastModified = connection.getHeaderField("Last-Modified");
+
+      this.validatorFile.delete();
+      if (etag == null && lastModified == null)
+      {
+        this.bodyFile.delete();
+        return;
+      }
+
+      try
+      {
+        writeFile(this.bodyFile, body);
+        writeFile(this.validatorFile, (etag != null ? etag : "") + "\n" + (lastModified != null ? lastModified : "") + "\n");
+      }
+      catch (final IOException e)
+      {
+        Log.w(TAG, "Failed to cache download", e);
+        this.validatorFile.delete();
+        this.bodyFile.delete();
+      }
+    }
+
+    private void writeFile(final File file, final String content) throws IOException
+    {
+      final File tempFile = new File(file.getPath() + ".tmp");
+      final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"), BUFFER_SIZE);
+      try
+      {
+        writer.write(content);
+      }
+      finally
+      {
+        writer.close();
+      }
+      if (!tempFile.renameTo(file))
+      {
+        tempFile.delete();
+        throw new IOException("Failed to replace " + file);
+      }
+    }
+  }
+
+  /**
+   * Counts the bytes transferred, before any decompression.
+   */
+  private static final class CountingInputStream extends FilterInputStream
+  {
+    private long count = 0;
+
+    public CountingInputStream(final InputStream in)
+    {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      final int b = super.read();
+      if (b >= 0)
+      {
+        this.count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException
+    {
+      final int read = super.read(buffer, offset, length);
+      if (read > 0)
+      {
+        this.count += read;
+      }
+      return read;
+    }
+
+    public long getCount()
+    {
+      return this.count;
     }
   }
 }
@@ -0,0 +1,215 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Hands items from any number of threads to a single background thread
+ * through a bounded, lock-free ring buffer. Producers never block: if the
+ * ring is full the item is dropped and counted.
+ * <p>
+ * Each slot carries a sequence number telling whether it is free for the
+ * producer at a given position or ready for the consumer, so producers only
+ * have to agree on the next position.
+ */
+public final class AsyncWriter<T>
+{
+  private static final String TAG = Utils.getTag(AsyncWriter.class);
+
+  /**
+   * Longest time the writer sleeps without checking for items, guards
+   * against missed wake-ups.
+   */
+  private static final long MAX_PARK_NANOS = 100 * 1000 * 1000L;
+
+  /**
+   * Receives items on the background thread.
+   */
+  public interface Sink<T>
+  {
+    void write(T item) throws IOException;
+
+    /**
+     * Called whenever all queued items have been written.
+     */
+    void flush() throws IOException;
+  }
+
+  private final Sink<T> sink;
+  private final Object[] items;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread thread;
+  private volatile boolean waiting = false;
+  private volatile boolean stopped = false;
+
+  /**
+   * Next position to be consumed, only used by the writer thread.
+   */
+  private long head = 0;
+
+  /**
+   * Creates the ring and starts the writer thread.
+   *
+   * @param name
+   *          Name of the writer thread
+   * @param capacity
+   *          Number of slots, must be a power of two
+   */
+  public AsyncWriter(final String name, final int capacity, final Sink<T> sink)
+  {
+    if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+      throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+
+    this.sink = sink;
+    this.items = new Object[capacity];
+    this.sequences = new AtomicLongArray(capacity);
+    this.mask = capacity - 1;
+    for (int i = 0; i < capacity; i++)
+      sequences.set(i, i);
+
+    thread = Utils.newDaemonThreadFactory(name).newThread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        drain();
+      }
+    });
+    thread.start();
+  }
+
+  /**
+   * Queues an item for writing.
+   *
+   * @return false if the item was dropped because the ring is full or the
+   *         writer has been shut down
+   */
+  public boolean offer(final T item)
+  {
+    if (stopped)
+    {
+      dropped.incrementAndGet();
+      return false;
+    }
+
+    long position;
+    int index;
+    while (true)
+    {
+      position = tail.get();
+      index = (int) position & mask;
+      final long difference = sequences.get(index) - position;
+      if (difference == 0)
+      {
+        if (tail.compareAndSet(position, position + 1))
+          break;
+      }
+      else if (difference < 0)
+      {
+        // The writer has not consumed this slot yet
+        dropped.incrementAndGet();
+        return false;
+      }
+    }
+
+    items[index] = item;
+    sequences.set(index, position + 1);
+    if (waiting)
+      LockSupport.unpark(thread);
+    return true;
+  }
+
+  /**
+   * @return number of items dropped so far
+   */
+  public long getDroppedCount()
+  {
+    return dropped.get();
+  }
+
+  /**
+   * Writes the items queued so far and stops the writer thread. Items
+   * offered afterwards are dropped.
+   */
+  public void shutdown()
+  {
+    stopped = true;
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * Waits for the writer thread to finish after {@link #shutdown()}.
+   *
+   * @return false if it is still running after the timeout
+   */
+  public boolean awaitTermination(final long timeoutMillis) throws InterruptedException
+  {
+    thread.join(timeoutMillis);
+    return !thread.isAlive();
+  }
+
+  private void drain()
+  {
+    while (true)
+    {
+      final int index = (int) head & mask;
+      if (sequences.get(index) == head + 1)
+      {
+        @SuppressWarnings("unchecked")
+        final T item = (T) items[index];
+        items[index] = null;
+        sequences.set(index, head + items.length);
+        head++;
+        try
+        {
+          sink.write(item);
+        }
+        catch (final Exception e)
+        {
+          Log.e(TAG, "Failed to write " + thread.getName(), e);
+        }
+        continue;
+      }
+
+      try
+      {
+        sink.flush();
+      }
+      catch (final Exception e)
+      {
+        Log.e(TAG, "Failed to flush " + thread.getName(), e);
+      }
+      if (stopped)
+        return;
+
+      waiting = true;
+      if (sequences.get(index) != head + 1 && !stopped)
+        LockSupport.parkNanos(this, MAX_PARK_NANOS);
+      waiting = false;
+    }
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.adblockplus.libadblockplus.FilterEngine.ContentType;
+
+/**
+ * Guesses the content type of a request from its Accept header and URL
+ * without allocating. Content types reported by upstream servers are
+ * remembered per URL and used when neither the Accept header nor the
+ * file extension are conclusive.
+ */
+public final class ContentTypeClassifier
+{
+  private static final ContentType[] CONTENT_TYPES = ContentType.values();
+
+  /**
+   * Longest extension that fits into a packed lookup key.
+   */
+  private static final int MAX_EXTENSION_LENGTH = 8;
+
+  private static final long[] EXTENSION_KEYS;
+  private static final ContentType[] EXTENSION_TYPES;
+
+  static
+  {
+    final Object[][] extensions = {
+      { "js", ContentType.SCRIPT },
+      { "css", ContentType.STYLESHEET },
+      { "gif", ContentType.IMAGE },
+      { "png", ContentType.IMAGE },
+      { "jpg", ContentType.IMAGE },
+      { "jpeg", ContentType.IMAGE },
+      { "bmp", ContentType.IMAGE },
+      { "ico", ContentType.IMAGE },
+      { "ttf", ContentType.FONT },
+      { "woff", ContentType.FONT },
+      { "htm", ContentType.SUBDOCUMENT },
+      { "html", ContentType.SUBDOCUMENT }
+    };
+
+    EXTENSION_KEYS = new long[extensions.length];
+    for (int i = 0; i < extensions.length; i++)
+    {
+      final String extension = (String) extensions[i][0];
+      EXTENSION_KEYS[i] = packExtension(extension, 0, extension.length());
+    }
+    Arrays.sort(EXTENSION_KEYS);
+
+    EXTENSION_TYPES = new ContentType[extensions.length];
+    for (final Object[] extension : extensions)
+    {
+      final String name = (String) extension[0];
+      EXTENSION_TYPES[Arrays.binarySearch(EXTENSION_KEYS, packExtension(name, 0, name.length()))] =
+          (ContentType) extension[1];
+    }
+  }
+
+  /**
+   * Number of remembered URLs, must be a power of two.
+   */
+  private static final int LEARNED_SIZE = 2048;
+  private static final long LEARNED_TYPE_MASK = 0xFFL;
+
+  /**
+   * Direct-mapped cache of learned content types. Each slot holds the upper
+   * bits of the URL hash and the content type ordinal (plus one) in the lowest
+   * byte, so that a slot can be read and written atomically.
+   */
+  private final AtomicLongArray learned = new AtomicLongArray(LEARNED_SIZE);
+
+  /**
+   * Classifies a request.
+   *
+   * @param url
+   *          Request URL without query string
+   * @param accept
+   *          Request accept header, may be {@code null}
+   * @return guessed content type, never {@code null}
+   */
+  public ContentType classify(final String url, final String accept)
+  {
+    ContentType contentType = null;
+
+    if (accept != null)
+      contentType = classifyAccept(accept);
+
+    if (contentType == null)
+      contentType = classifyExtension(url);
+
+    if (contentType == null)
+      contentType = getLearned(url);
+
+    return contentType != null ? contentType : ContentType.OTHER;
+  }
+
+  /**
+   * Remembers the content type the server returned for the given URL.
+   *
+   * @param url
+   *          Request URL without query string
+   * @param contentType
+   *          Content-Type response header, may be {@code null}
+   */
+  public void learn(final String url, final String contentType)
+  {
+    if (url == null || contentType == null)
+      return;
+
+    final ContentType type = classifyMimeType(contentType);
+    if (type == null)
+      return;
+
+    final long hash = Utils.hash64(url);
+    learned.lazySet(slot(hash), (hash & ~LEARNED_TYPE_MASK) | (type.ordinal() + 1));
+  }
+
+  private ContentType getLearned(final String url)
+  {
+    final long hash = Utils.hash64(url);
+    final long entry = learned.get(slot(hash));
+    if (entry == 0 || (entry & ~LEARNED_TYPE_MASK) != (hash & ~LEARNED_TYPE_MASK))
+      return null;
+    return CONTENT_TYPES[(int) (entry & LEARNED_TYPE_MASK) - 1];
+  }
+
+  /**
+   * Looks for the media ranges we are interested in among the comma separated
+   * Accept header tokens, ignoring parameters and surrounding whitespace.
+   */
+  static ContentType classifyAccept(final String accept)
+  {
+    boolean image = false;
+    boolean html = false;
+
+    final int length = accept.length();
+    int start = 0;
+    while (start < length)
+    {
+      int end = accept.indexOf(',', start);
+      if (end < 0)
+        end = length;
+
+      int tokenEnd = end;
+      for (int i = start; i < end; i++)
+      {
+        if (accept.charAt(i) == ';')
+        {
+          tokenEnd = i;
+          break;
+        }
+      }
+      while (start < tokenEnd && accept.charAt(start) <= ' ')
+        start++;
+      while (tokenEnd > start && accept.charAt(tokenEnd - 1) <= ' ')
+        tokenEnd--;
+
+      final int tokenLength = tokenEnd - start;
+      if (tokenEquals(accept, start, tokenLength, "text/css"))
+        return ContentType.STYLESHEET;
+      else if (tokenEquals(accept, start, tokenLength, "image/*"))
+        image = true;
+      else if (tokenEquals(accept, start, tokenLength, "text/html"))
+        html = true;
+
+      start = end + 1;
+    }
+
+    if (image)
+      return ContentType.IMAGE;
+    if (html)
+      return ContentType.SUBDOCUMENT;
+    return null;
+  }
+
+  /**
+   * Extracts the file extension at the end of the URL and looks it up in the
+   * precomputed extension table.
+   */
+  static ContentType classifyExtension(final String url)
+  {
+    final int end = url.length();
+    int start = end;
+    while (start > 0 && end - start <= MAX_EXTENSION_LENGTH)
+    {
+      final char c = url.charAt(start - 1);
+      if (c == '.')
+      {
+        if (start == end)
+          return null;
+        final int index = Arrays.binarySearch(EXTENSION_KEYS, packExtension(url, start, end));
+        return index >= 0 ? EXTENSION_TYPES[index] : null;
+      }
+      if (!isAsciiLetterOrDigit(c))
+        return null;
+      start--;
+    }
+    return null;
+  }
+
+  /**
+   * Maps a Content-Type header value to a content type, {@code null} if it
+   * does not tell us anything useful.
+   */
+  static ContentType classifyMimeType(final String mimeType)
+  {
+    int start = 0;
+    while (start < mimeType.length() && mimeType.charAt(start) <= ' ')
+      start++;
+
+    if (startsWith(mimeType, start, "text/css"))
+      return ContentType.STYLESHEET;
+    if (startsWith(mimeType, start, "image/"))
+      return ContentType.IMAGE;
+    if (startsWith(mimeType, start, "text/html") || startsWith(mimeType, start, "application/xhtml+xml"))
+      return ContentType.SUBDOCUMENT;
+    if (startsWith(mimeType, start, "application/javascript") || startsWith(mimeType, start, "text/javascript")
+        || startsWith(mimeType, start, "application/x-javascript") || startsWith(mimeType, start, "application/ecmascript")
+        || startsWith(mimeType, start, "text/ecmascript"))
+      return ContentType.SCRIPT;
+    if (startsWith(mimeType, start, "font/") || startsWith(mimeType, start, "application/font-")
+        || startsWith(mimeType, start, "application/x-font-") || startsWith(mimeType, start, "application/vnd.ms-fontobject"))
+      return ContentType.FONT;
+    if (startsWith(mimeType, start, "audio/") || startsWith(mimeType, start, "video/"))
+      return ContentType.MEDIA;
+    return null;
+  }
+
+  private static boolean tokenEquals(final String s, final int offset, final int length, final String token)
+  {
+    return length == token.length() && s.regionMatches(true, offset, token, 0, length);
+  }
+
+  private static boolean startsWith(final String s, final int offset, final String prefix)
+  {
+    return s.regionMatches(true, offset, prefix, 0, prefix.length());
+  }
+
+  private static boolean isAsciiLetterOrDigit(final char c)
+  {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+  }
+
+  /**
+   * Packs up to eight lower-cased ASCII characters into a long.
+   */
+  private static long packExtension(final String s, final int start, final int end)
+  {
+    long key = 0;
+    for (int i = start; i < end; i++)
+    {
+      char c = s.charAt(i);
+      if (c >= 'A' && c <= 'Z')
+        c += 'a' - 'A';
+      key = (key << 8) | (c & 0xFF);
+    }
+    return key;
+  }
+
+  private static int slot(final long hash)
+  {
+    return (int) (hash ^ (hash >>> 32)) & (LEARNED_SIZE - 1);
+  }
+}
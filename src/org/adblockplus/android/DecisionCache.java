@@ -0,0 +1,179 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.adblockplus.libadblockplus.FilterEngine.ContentType;
+
+/**
+ * Remembers recent blocking decisions, so that repeated requests do not have
+ * to go through the filter engine. Must be cleared whenever filters change.
+ */
+public class DecisionCache
+{
+  private static final int BLOCK = 1;
+  /**
+   * Set for decisions computed ahead of time which have not been used yet.
+   */
+  private static final int PREFETCHED = 2;
+
+  private class Cache extends LinkedHashMap<String, Integer>
+  {
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_SIZE = 2000;
+
+    public Cache()
+    {
+      super(MAX_SIZE + 1, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, Integer> eldest)
+    {
+      if (size() > MAX_SIZE)
+      {
+        if ((eldest.getValue().intValue() & PREFETCHED) != 0)
+          prefetchWasted.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+  };
+
+  private final Cache cache = new Cache();
+
+  /**
+   * Incremented on every newly stored decision, lets callers find out whether
+   * the cache has changed since they last looked at it.
+   */
+  private volatile long modificationCount = 0;
+
+  private final AtomicLong prefetchHits = new AtomicLong();
+  private final AtomicLong prefetchWasted = new AtomicLong();
+
+  /**
+   * Builds the cache key for a request.
+   *
+   * @param fullUrl
+   *          Request URL including query string
+   * @param contentType
+   *          Classified content type
+   * @param referrer
+   *          Request referrer header, may be {@code null}
+   */
+  public static String createKey(final String fullUrl, final ContentType contentType, final String referrer)
+  {
+    final StringBuilder sb = new StringBuilder(fullUrl.length() + (referrer != null ? referrer.length() : 0) + 16);
+    sb.append(contentType.ordinal()).append(' ').append(fullUrl);
+    if (referrer != null)
+      sb.append(' ').append(referrer);
+    return sb.toString();
+  }
+
+  /**
+   * @return cached decision or {@code null} if unknown
+   */
+  public synchronized Boolean get(final String key)
+  {
+    final Integer value = cache.get(key);
+    if (value == null)
+      return null;
+
+    final int flags = value.intValue();
+    if ((flags & PREFETCHED) != 0)
+    {
+      prefetchHits.incrementAndGet();
+      cache.put(key, Integer.valueOf(flags & ~PREFETCHED));
+    }
+    return Boolean.valueOf((flags & BLOCK) != 0);
+  }
+
+  /**
+   * Checks for a cached decision without counting it as used.
+   */
+  public synchronized boolean contains(final String key)
+  {
+    return cache.containsKey(key);
+  }
+
+  public synchronized void put(final String key, final boolean block)
+  {
+    cache.put(key, Integer.valueOf(block ? BLOCK : 0));
+    modificationCount++;
+  }
+
+  /**
+   * Stores a decision computed before the resource was requested, unless a
+   * decision is known already.
+   */
+  public synchronized void putPrefetched(final String key, final boolean block)
+  {
+    if (!cache.containsKey(key))
+    {
+      cache.put(key, Integer.valueOf(block ? BLOCK | PREFETCHED : PREFETCHED));
+      modificationCount++;
+    }
+  }
+
+  public synchronized void clear()
+  {
+    for (final Integer value : cache.values())
+    {
+      if ((value.intValue() & PREFETCHED) != 0)
+        prefetchWasted.incrementAndGet();
+    }
+    cache.clear();
+    modificationCount++;
+  }
+
+  /**
+   * @return a copy of all cached decisions
+   */
+  public synchronized Map<String, Boolean> getDecisions()
+  {
+    final Map<String, Boolean> decisions = new HashMap<String, Boolean>(cache.size() * 2);
+    for (final Map.Entry<String, Integer> entry : cache.entrySet())
+      decisions.put(entry.getKey(), Boolean.valueOf((entry.getValue().intValue() & BLOCK) != 0));
+    return decisions;
+  }
+
+  public long getModificationCount()
+  {
+    return modificationCount;
+  }
+
+  /**
+   * @return number of prefetched decisions that were used by a request
+   */
+  public long getPrefetchHitCount()
+  {
+    return prefetchHits.get();
+  }
+
+  /**
+   * @return number of prefetched decisions dropped without being used
+   */
+  public long getPrefetchWastedCount()
+  {
+    return prefetchWasted.get();
+  }
+}
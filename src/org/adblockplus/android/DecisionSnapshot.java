@@ -0,0 +1,217 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Read-only, memory-mapped set of blocking decisions persisted by a previous
+ * run, which lets the proxy answer known requests before the filter engine
+ * has finished loading.
+ * <p>
+ * The file consists of a header (magic, format version, filter state hash and
+ * entry count) followed by a sorted array of entries. Each entry is the 64 bit
+ * hash of a {@link DecisionCache} key with the lowest bit replaced by the
+ * decision. A snapshot is only valid as long as the filter state hash matches
+ * the one of the running engine.
+ */
+public final class DecisionSnapshot
+{
+  private static final String TAG = Utils.getTag(DecisionSnapshot.class);
+
+  public static final String FILE_NAME = "decisions.bin";
+
+  private static final int MAGIC = 0x41425044; // "ABPD"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 24;
+  private static final int MAX_ENTRIES = 16384;
+
+  private final long filterStateHash;
+  private final LongBuffer entries;
+
+  private DecisionSnapshot(final long filterStateHash, final LongBuffer entries)
+  {
+    this.filterStateHash = filterStateHash;
+    this.entries = entries;
+  }
+
+  /**
+   * Maps a previously saved snapshot.
+   *
+   * @return the snapshot or {@code null} if there is none or it is corrupt
+   */
+  public static DecisionSnapshot load(final File file)
+  {
+    if (!file.exists())
+      return null;
+
+    try
+    {
+      final RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try
+      {
+        final FileChannel channel = raf.getChannel();
+        final long size = channel.size();
+        if (size < HEADER_SIZE)
+          return null;
+
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION)
+          return null;
+
+        final long filterStateHash = buffer.getLong(8);
+        final int count = buffer.getInt(16);
+        if (count < 0 || HEADER_SIZE + 8L * count != size)
+          return null;
+
+        buffer.position(HEADER_SIZE);
+        return new DecisionSnapshot(filterStateHash, buffer.slice().asLongBuffer());
+      }
+      finally
+      {
+        raf.close();
+      }
+    }
+    catch (final IOException e)
+    {
+      Log.e(TAG, "Failed to load decision snapshot", e);
+      return null;
+    }
+  }
+
+  /**
+   * Writes decisions to a new snapshot file, replacing the previous one
+   * atomically.
+   *
+   * @param decisions
+   *          Decisions to save, keyed by {@link DecisionCache} key
+   * @param previous
+   *          Previous snapshot to carry entries over from, only used if its
+   *          filter state hash is still the same, may be {@code null}
+   */
+  public static void save(final File file, final long filterStateHash, final Map<String, Boolean> decisions,
+      final DecisionSnapshot previous) throws IOException
+  {
+    final boolean carryOver = previous != null && previous.filterStateHash == filterStateHash;
+    final int previousCount = carryOver ? previous.entries.capacity() : 0;
+
+    final long[] data = new long[Math.min(decisions.size() + previousCount, MAX_ENTRIES)];
+    int count = 0;
+    for (final Map.Entry<String, Boolean> decision : decisions.entrySet())
+    {
+      if (count == data.length)
+        break;
+      data[count++] = entry(Utils.hash64(decision.getKey()), decision.getValue().booleanValue());
+    }
+    Arrays.sort(data, 0, count);
+
+    // Carry over previous decisions unless they were made again
+    final int freshCount = count;
+    for (int i = 0; i < previousCount && count < data.length; i++)
+    {
+      final long entry = previous.entries.get(i);
+      if (Arrays.binarySearch(data, 0, freshCount, entry & ~1L) < 0
+          && Arrays.binarySearch(data, 0, freshCount, entry | 1L) < 0)
+        data[count++] = entry;
+    }
+    Arrays.sort(data, 0, count);
+
+    final File tempFile = new File(file.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeLong(filterStateHash);
+      out.writeInt(count);
+      out.writeInt(0);
+      for (int i = 0; i < count; i++)
+        out.writeLong(data[i]);
+    }
+    finally
+    {
+      out.close();
+    }
+
+    if (!tempFile.renameTo(file))
+    {
+      tempFile.delete();
+      throw new IOException("Failed to replace " + file);
+    }
+  }
+
+  /**
+   * @return hash of the filter state the decisions were made with
+   */
+  public long getFilterStateHash()
+  {
+    return filterStateHash;
+  }
+
+  /**
+   * @return number of stored decisions
+   */
+  public int size()
+  {
+    return entries.capacity();
+  }
+
+  /**
+   * Looks up a decision.
+   *
+   * @param key
+   *          {@link DecisionCache} key of the request
+   * @return the decision or {@code null} if unknown
+   */
+  public Boolean lookup(final String key)
+  {
+    final long wanted = Utils.hash64(key) & ~1L;
+    int low = 0;
+    int high = entries.capacity() - 1;
+    while (low <= high)
+    {
+      final int mid = (low + high) >>> 1;
+      final long entry = entries.get(mid);
+      final long value = entry & ~1L;
+      if (value < wanted)
+        low = mid + 1;
+      else if (value > wanted)
+        high = mid - 1;
+      else
+        return Boolean.valueOf((entry & 1L) != 0);
+    }
+    return null;
+  }
+
+  private static long entry(final long hash, final boolean block)
+  {
+    return (hash & ~1L) | (block ? 1L : 0L);
+  }
+}
@@ -0,0 +1,779 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+/**
+ * Keeps the element hiding rules of the listed subscriptions outside of the
+ * filter engine, in a compact read-only index:
+ * <ul>
+ * <li>every distinct selector is stored once, UTF-8 encoded in one packed
+ * byte array and addressed by its id</li>
+ * <li>domains are kept as sorted 64 bit hashes, each pointing to a range of
+ * rules to include or exclude, rules refer to their selector by id</li>
+ * <li>selectors of rules without domains are decoded once when the index is
+ * built</li>
+ * </ul>
+ * Rules are persisted per subscription, because the filter engine never sees
+ * them and would not restore them after a restart. The index is rebuilt in
+ * background whenever rules or the listed subscriptions change.
+ */
+public class ElementHidingStore
+{
+  private static final String TAG = Utils.getTag(ElementHidingStore.class);
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final String FILE_SUFFIX = ".elemhide";
+
+  /**
+   * Memory budget of the whole index, rules which would take it beyond that
+   * are dropped.
+   */
+  private static final int MAX_MEMORY = 4 * 1024 * 1024;
+
+  private final File directory;
+  private final ExecutorService buildExecutor = Executors.newSingleThreadExecutor(Utils.newDaemonThreadFactory("ElementHidingStore"));
+
+  private volatile Set<String> subscriptionUrls = new HashSet<String>();
+  private volatile Index index = Index.EMPTY;
+
+  public ElementHidingStore(final File directory)
+  {
+    this.directory = directory;
+    if (!directory.isDirectory() && !directory.mkdirs())
+    {
+      Log.w(TAG, "Failed to create directory " + directory);
+    }
+  }
+
+  /**
+   * @return {@code true} if the line is an element hiding rule or exception
+   */
+  public static boolean isElementHidingRule(final String line)
+  {
+    return line.length() > 0 && line.charAt(0) != '!' && (line.indexOf("##") != -1 || line.indexOf("#@#") != -1);
+  }
+
+  /**
+   * Replaces the element hiding rules of a subscription.
+   *
+   * @param url
+   *          Subscription URL without query string
+   */
+  public void setRules(final String url, final List<String> rules)
+  {
+    final File file = getFile(url);
+    try
+    {
+      final File tempFile = new File(file.getPath() + ".tmp");
+      final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), UTF_8));
+      try
+      {
+        for (final String rule : rules)
+        {
+          writer.write(rule);
+          writer.write('\n');
+        }
+      }
+      finally
+      {
+        writer.close();
+      }
+      if (!tempFile.renameTo(file))
+      {
+        tempFile.delete();
+        throw new IOException("Failed to replace " + file);
+      }
+    }
+    catch (final IOException e)
+    {
+      Log.e(TAG, "Failed to save element hiding rules of " + url, e);
+      return;
+    }
+
+    if (subscriptionUrls.contains(url))
+    {
+      rebuild();
+    }
+  }
+
+  /**
+   * Checks if the rules of a subscription have been saved, possibly an empty
+   * set of them.
+   *
+   * @param url
+   *          Subscription URL without query string
+   */
+  public boolean hasRules(final String url)
+  {
+    return getFile(url).isFile();
+  }
+
+  /**
+   * Sets the subscriptions whose rules should be applied.
+   */
+  public void setSubscriptions(final Collection<String> urls)
+  {
+    final Set<String> newUrls = new HashSet<String>(urls);
+    if (!newUrls.equals(subscriptionUrls))
+    {
+      subscriptionUrls = newUrls;
+      rebuild();
+    }
+  }
+
+  /**
+   * Returns the selectors to hide on the given host.
+   *
+   * @return selectors or {@code null} if there are none
+   */
+  public String[] getSelectorsForDomain(final String host)
+  {
+    return index.getSelectors(host.toLowerCase());
+  }
+
+  /**
+   * @return approximate number of bytes used by the current index
+   */
+  public long getMemoryUsage()
+  {
+    return index.memoryUsage;
+  }
+
+  /**
+   * @return number of distinct selectors in the current index
+   */
+  public int getSelectorCount()
+  {
+    return index.selectorCount();
+  }
+
+  /**
+   * @return number of rules left out of the current index to stay within the
+   *         memory budget
+   */
+  public int getDroppedRuleCount()
+  {
+    return index.droppedRules;
+  }
+
+  public void shutdown()
+  {
+    buildExecutor.shutdownNow();
+  }
+
+  private File getFile(final String url)
+  {
+    return new File(directory, Long.toHexString(Utils.hash64(url)) + FILE_SUFFIX);
+  }
+
+  private void rebuild()
+  {
+    buildExecutor.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        final long start = System.currentTimeMillis();
+        final Builder builder = new Builder();
+        for (final String url : subscriptionUrls)
+        {
+          final File file = getFile(url);
+          if (file.isFile())
+          {
+            builder.addFile(file);
+          }
+        }
+        index = builder.build();
+        Log.i(TAG, "Indexed " + index.selectorCount() + " selectors (" + index.memoryUsage + " bytes, "
+            + index.droppedRules + " rules dropped) in " + (System.currentTimeMillis() - start) + " ms");
+      }
+    });
+  }
+
+  /**
+   * Immutable lookup structure.
+   * <p>
+   * Domains point to rules rather than selectors, so that every rule is
+   * resolved on its own: the most specific domain of the host listed by a
+   * rule decides whether it applies, rules without included domains apply
+   * everywhere else. Only exceptions ({@code #@#}) affect other rules, by
+   * suppressing their selector.
+   * <p>
+   * The result for hosts none of the rules lists is computed up front. For
+   * other hosts only the rules their domains point to are looked at, and that
+   * result is adjusted.
+   */
+  private static final class Index
+  {
+    static final Index EMPTY = new Index(new byte[0], new int[] {0}, new int[0], new BitSet(), new BitSet(),
+        new long[0], new int[] {0}, new int[0], new int[0], new int[0], 0);
+
+    /**
+     * Lowest bit of a domain entry, set if the rule is excluded rather than
+     * included on that domain.
+     */
+    static final int EXCLUDE = 1;
+
+    /**
+     * Bytes per rule: its selector id and its bits in the rule sets.
+     */
+    static final int RULE_COST = 5;
+    /**
+     * Bytes per domain: its hash and the start of its entries.
+     */
+    static final int DOMAIN_COST = 12;
+    /**
+     * Bytes per selector of the generic result besides its characters: the
+     * String object and array slot, and its two id slots.
+     */
+    static final int GENERIC_SELECTOR_COST = 52;
+
+    final byte[] selectorData;
+    final int[] selectorOffsets;
+    final int[] ruleSelectors;
+    final BitSet exceptionRules;
+    /**
+     * Rules without included domains.
+     */
+    final BitSet genericRules;
+    final long[] domainHashes;
+    final int[] domainStarts;
+    final int[] domainEntries;
+    /**
+     * Distinct selectors of generic hiding rules and generic exceptions,
+     * sorted, with the number of rules having them.
+     */
+    final int[] genericRuleSelectors;
+    final int[] genericRuleCounts;
+    final int[] genericExceptionSelectors;
+    final int[] genericExceptionCounts;
+    /**
+     * Result for hosts none of the rules lists, with the ids of its selectors
+     * in the same order and sorted.
+     */
+    final String[] genericSelectors;
+    final int[] genericSelectorIds;
+    final int[] sortedGenericSelectorIds;
+    final int droppedRules;
+    final long memoryUsage;
+
+    Index(final byte[] selectorData, final int[] selectorOffsets, final int[] ruleSelectors, final BitSet exceptionRules,
+        final BitSet genericRules, final long[] domainHashes, final int[] domainStarts, final int[] domainEntries,
+        final int[] genericHidingRules, final int[] genericExceptionRules, final int droppedRules)
+    {
+      this.selectorData = selectorData;
+      this.selectorOffsets = selectorOffsets;
+      this.ruleSelectors = ruleSelectors;
+      this.exceptionRules = exceptionRules;
+      this.genericRules = genericRules;
+      this.domainHashes = domainHashes;
+      this.domainStarts = domainStarts;
+      this.domainEntries = domainEntries;
+      this.droppedRules = droppedRules;
+
+      final int[][] ruleCounts = countSelectors(ruleSelectors, genericHidingRules);
+      genericRuleSelectors = ruleCounts[0];
+      genericRuleCounts = ruleCounts[1];
+      final int[][] exceptionCounts = countSelectors(ruleSelectors, genericExceptionRules);
+      genericExceptionSelectors = exceptionCounts[0];
+      genericExceptionCounts = exceptionCounts[1];
+
+      final BitSet emitted = new BitSet();
+      final List<String> selectors = new ArrayList<String>();
+      final List<Integer> ids = new ArrayList<Integer>();
+      long genericChars = 0;
+      for (final int rule : genericHidingRules)
+      {
+        final int id = ruleSelectors[rule];
+        if (!emitted.get(id) && Arrays.binarySearch(genericExceptionSelectors, id) < 0)
+        {
+          emitted.set(id);
+          final String selector = getSelector(id);
+          selectors.add(selector);
+          ids.add(Integer.valueOf(id));
+          genericChars += selector.length();
+        }
+      }
+      genericSelectors = selectors.toArray(new String[selectors.size()]);
+      genericSelectorIds = Builder.toArray(ids);
+      sortedGenericSelectorIds = genericSelectorIds.clone();
+      Arrays.sort(sortedGenericSelectorIds);
+
+      memoryUsage = selectorData.length + 4L * selectorOffsets.length + RULE_COST * ruleSelectors.length
+          + DOMAIN_COST * domainHashes.length + 4L * domainEntries.length
+          + 8L * (genericRuleSelectors.length + genericExceptionSelectors.length)
+          + GENERIC_SELECTOR_COST * genericSelectors.length + 2 * genericChars;
+    }
+
+    private static int[][] countSelectors(final int[] ruleSelectors, final int[] rules)
+    {
+      final int[] sorted = new int[rules.length];
+      for (int i = 0; i < rules.length; i++)
+        sorted[i] = ruleSelectors[rules[i]];
+      Arrays.sort(sorted);
+
+      int distinct = 0;
+      for (int i = 0; i < sorted.length; i++)
+      {
+        if (i == 0 || sorted[i] != sorted[i - 1])
+          distinct++;
+      }
+      final int[] selectors = new int[distinct];
+      final int[] counts = new int[distinct];
+      int k = -1;
+      for (int i = 0; i < sorted.length; i++)
+      {
+        if (i == 0 || sorted[i] != sorted[i - 1])
+          selectors[++k] = sorted[i];
+        counts[k]++;
+      }
+      return new int[][] {selectors, counts};
+    }
+
+    int selectorCount()
+    {
+      return selectorOffsets.length - 1;
+    }
+
+    String getSelector(final int id)
+    {
+      final int offset = selectorOffsets[id];
+      return new String(selectorData, offset, selectorOffsets[id + 1] - offset, UTF_8);
+    }
+
+    String[] getSelectors(final String host)
+    {
+      // Find the host and all its parent domains, most specific first
+      int[] found = null;
+      int foundCount = 0;
+      int hitCount = 0;
+      int start = 0;
+      while (start >= 0 && domainHashes.length > 0)
+      {
+        final int i = Arrays.binarySearch(domainHashes, Utils.hash64(host.substring(start)));
+        if (i >= 0)
+        {
+          if (found == null)
+            found = new int[8];
+          else if (foundCount == found.length)
+            found = Arrays.copyOf(found, foundCount * 2);
+          found[foundCount++] = i;
+          hitCount += domainStarts[i + 1] - domainStarts[i];
+        }
+        final int dot = host.indexOf('.', start);
+        start = dot >= 0 ? dot + 1 : -1;
+      }
+
+      if (foundCount == 0)
+        return genericSelectors.length > 0 ? genericSelectors : null;
+
+      // Sort the hits by rule, keeping the order of the domains within a rule,
+      // so that the first hit of each rule is the one deciding about it
+      final long[] hits = new long[hitCount];
+      int position = 0;
+      for (int k = 0; k < foundCount; k++)
+      {
+        for (int j = domainStarts[found[k]]; j < domainStarts[found[k] + 1]; j++)
+        {
+          final int entry = domainEntries[j];
+          hits[position] = ((long) (entry >>> 1) << 32) | ((long) position << 1) | (entry & EXCLUDE);
+          position++;
+        }
+      }
+      Arrays.sort(hits);
+
+      // Selectors of included rules and exceptions, of excluded generic rules
+      // and generic exceptions
+      final int[] included = new int[hitCount];
+      final int[] exceptions = new int[hitCount];
+      final int[] excluded = new int[hitCount];
+      final int[] lifted = new int[hitCount];
+      int includedCount = 0;
+      int exceptionCount = 0;
+      int excludedCount = 0;
+      int liftedCount = 0;
+      for (int i = 0; i < hitCount; i++)
+      {
+        final int rule = (int) (hits[i] >>> 32);
+        if (i > 0 && (int) (hits[i - 1] >>> 32) == rule)
+          continue;
+
+        final int id = ruleSelectors[rule];
+        final boolean exception = exceptionRules.get(rule);
+        if ((hits[i] & EXCLUDE) == 0)
+        {
+          if (exception)
+            exceptions[exceptionCount++] = id;
+          else
+            included[includedCount++] = id;
+        }
+        else if (genericRules.get(rule))
+        {
+          if (exception)
+            lifted[liftedCount++] = id;
+          else
+            excluded[excludedCount++] = id;
+        }
+      }
+      Arrays.sort(exceptions, 0, exceptionCount);
+      Arrays.sort(excluded, 0, excludedCount);
+      Arrays.sort(lifted, 0, liftedCount);
+
+      // Generic selectors no generic rule applies to any more, or excepted
+      final int[] removed = new int[excludedCount + exceptionCount];
+      int removedCount = 0;
+      for (int i = 0; i < excludedCount; i++)
+      {
+        final int id = excluded[i];
+        if ((i == 0 || excluded[i - 1] != id)
+            && count(excluded, excludedCount, id) >= getCount(genericRuleSelectors, genericRuleCounts, id))
+          removed[removedCount++] = id;
+      }
+      for (int i = 0; i < exceptionCount; i++)
+        removed[removedCount++] = exceptions[i];
+      Arrays.sort(removed, 0, removedCount);
+
+      // Selectors of included rules and of generic rules no longer excepted
+      final int[] added = new int[includedCount + liftedCount];
+      int addedCount = 0;
+      for (int i = 0; i < includedCount; i++)
+        added[addedCount++] = included[i];
+      for (int i = 0; i < liftedCount; i++)
+      {
+        final int id = lifted[i];
+        if ((i == 0 || lifted[i - 1] != id)
+            && getCount(genericRuleSelectors, genericRuleCounts, id) > count(excluded, excludedCount, id))
+          added[addedCount++] = id;
+      }
+      Arrays.sort(added, 0, addedCount);
+
+      final List<String> additions = new ArrayList<String>(addedCount);
+      for (int i = 0; i < addedCount; i++)
+      {
+        final int id = added[i];
+        if (i > 0 && added[i - 1] == id)
+          continue;
+        if (Arrays.binarySearch(exceptions, 0, exceptionCount, id) >= 0)
+          continue;
+        // Still excepted by a generic exception which was not lifted here
+        if (Arrays.binarySearch(genericExceptionSelectors, id) >= 0
+            && count(lifted, liftedCount, id) < getCount(genericExceptionSelectors, genericExceptionCounts, id))
+          continue;
+        // Already part of the generic result
+        if (Arrays.binarySearch(sortedGenericSelectorIds, id) >= 0
+            && Arrays.binarySearch(removed, 0, removedCount, id) < 0)
+          continue;
+        additions.add(getSelector(id));
+      }
+
+      if (removedCount == 0)
+      {
+        if (additions.isEmpty())
+          return genericSelectors.length > 0 ? genericSelectors : null;
+        final String[] result = Arrays.copyOf(genericSelectors, genericSelectors.length + additions.size());
+        for (int i = 0; i < additions.size(); i++)
+          result[genericSelectors.length + i] = additions.get(i);
+        return result;
+      }
+
+      final List<String> selectors = new ArrayList<String>(genericSelectors.length + additions.size());
+      for (int i = 0; i < genericSelectors.length; i++)
+      {
+        if (Arrays.binarySearch(removed, 0, removedCount, genericSelectorIds[i]) < 0)
+          selectors.add(genericSelectors[i]);
+      }
+      selectors.addAll(additions);
+      return selectors.isEmpty() ? null : selectors.toArray(new String[selectors.size()]);
+    }
+
+    /**
+     * @return number of occurrences of a value in a sorted array
+     */
+    private static int count(final int[] sorted, final int length, final int value)
+    {
+      final int i = Arrays.binarySearch(sorted, 0, length, value);
+      if (i < 0)
+        return 0;
+      int first = i;
+      while (first > 0 && sorted[first - 1] == value)
+        first--;
+      int last = i;
+      while (last + 1 < length && sorted[last + 1] == value)
+        last++;
+      return last - first + 1;
+    }
+
+    private static int getCount(final int[] selectors, final int[] counts, final int id)
+    {
+      final int i = Arrays.binarySearch(selectors, id);
+      return i >= 0 ? counts[i] : 0;
+    }
+  }
+
+  /**
+   * Parses rules and builds an index from them, within the memory budget.
+   */
+  private static final class Builder
+  {
+    private final Map<String, Integer> selectorIds = new HashMap<String, Integer>();
+    private final ByteArrayOutputStream selectorData = new ByteArrayOutputStream();
+    private final List<Integer> selectorOffsets = new ArrayList<Integer>();
+    private final List<Integer> ruleSelectors = new ArrayList<Integer>();
+    private final BitSet exceptionRules = new BitSet();
+    private final BitSet genericRules = new BitSet();
+    private final Map<String, List<Integer>> domainEntries = new HashMap<String, List<Integer>>();
+    private final List<Integer> genericHidingRules = new ArrayList<Integer>();
+    private final List<Integer> genericExceptionRules = new ArrayList<Integer>();
+    private final Set<Integer> genericHidingSelectors = new HashSet<Integer>();
+    private final Set<Integer> genericExceptionSelectors = new HashSet<Integer>();
+    private final Set<String> globalExceptions = new HashSet<String>();
+    private final List<String[]> rules = new ArrayList<String[]>();
+    private int droppedRules = 0;
+
+    /**
+     * Upper bound of the memory used by the index built from the rules
+     * accepted so far, see {@link Index#memoryUsage}.
+     */
+    private long memoryUsage = 4;
+
+    void addFile(final File file)
+    {
+      try
+      {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try
+        {
+          String line;
+          while ((line = reader.readLine()) != null)
+          {
+            parse(line.trim());
+          }
+        }
+        finally
+        {
+          reader.close();
+        }
+      }
+      catch (final IOException e)
+      {
+        Log.e(TAG, "Failed to read " + file, e);
+      }
+    }
+
+    private void parse(final String line)
+    {
+      int separator = line.indexOf("#@#");
+      final boolean exception = separator != -1;
+      if (!exception)
+        separator = line.indexOf("##");
+      if (separator == -1)
+        return;
+
+      final String domains = line.substring(0, separator).toLowerCase();
+      final String selector = line.substring(separator + (exception ? 3 : 2));
+      if (selector.length() == 0)
+        return;
+
+      if (exception && domains.length() == 0)
+        globalExceptions.add(selector);
+      else
+        rules.add(new String[] {domains, selector, exception ? "" : null});
+    }
+
+    Index build()
+    {
+      selectorOffsets.add(Integer.valueOf(0));
+
+      for (final String[] rule : rules)
+      {
+        final String selector = rule[1];
+        if (!globalExceptions.contains(selector))
+          addRule(rule[0].split(","), selector, rule[2] != null);
+      }
+
+      final int[] offsets = toArray(selectorOffsets);
+
+      // Sort domains by hash so that they can be found by binary search
+      final long[][] hashed = new long[domainEntries.size()][];
+      final List<List<Integer>> entryLists = new ArrayList<List<Integer>>(domainEntries.values());
+      int k = 0;
+      for (final String domain : domainEntries.keySet())
+      {
+        hashed[k] = new long[] {Utils.hash64(domain), k};
+        k++;
+      }
+      Arrays.sort(hashed, new Comparator<long[]>()
+      {
+        @Override
+        public int compare(final long[] a, final long[] b)
+        {
+          return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+        }
+      });
+
+      final long[] hashes = new long[hashed.length];
+      final int[] starts = new int[hashed.length + 1];
+      int entryCount = 0;
+      for (final List<Integer> entries : entryLists)
+        entryCount += entries.size();
+      final int[] entries = new int[entryCount];
+      int position = 0;
+      for (int i = 0; i < hashed.length; i++)
+      {
+        hashes[i] = hashed[i][0];
+        starts[i] = position;
+        for (final Integer entry : entryLists.get((int) hashed[i][1]))
+          entries[position++] = entry.intValue();
+      }
+      starts[hashed.length] = position;
+
+      return new Index(selectorData.toByteArray(), offsets, toArray(ruleSelectors), exceptionRules, genericRules,
+          hashes, starts, entries, toArray(genericHidingRules), toArray(genericExceptionRules), droppedRules);
+    }
+
+    /**
+     * Adds a rule unless the index would exceed the memory budget with it.
+     */
+    private void addRule(final String[] domains, final String selector, final boolean exception)
+    {
+      final Integer existing = selectorIds.get(selector);
+      final byte[] bytes = existing == null ? selector.getBytes(UTF_8) : null;
+
+      long cost = Index.RULE_COST;
+      if (bytes != null)
+        cost += bytes.length + 4;
+      boolean hasIncludes = false;
+      for (final String domain : domains)
+      {
+        if (domain.length() == 0)
+          continue;
+        final boolean exclude = domain.charAt(0) == '~';
+        hasIncludes |= !exclude;
+        cost += 4;
+        if (!domainEntries.containsKey(exclude ? domain.substring(1) : domain))
+          cost += Index.DOMAIN_COST;
+      }
+      // Generic selectors are counted as if all ended up in the generic
+      // result, which is an upper bound
+      if (!hasIncludes && (existing == null
+          || !(exception ? genericExceptionSelectors : genericHidingSelectors).contains(existing)))
+        cost += 8 + (exception ? 0 : Index.GENERIC_SELECTOR_COST + 2 * selector.length());
+
+      if (memoryUsage + cost > MAX_MEMORY)
+      {
+        droppedRules++;
+        return;
+      }
+      memoryUsage += cost;
+
+      final int id;
+      if (existing != null)
+      {
+        id = existing.intValue();
+      }
+      else
+      {
+        id = selectorOffsets.size() - 1;
+        selectorData.write(bytes, 0, bytes.length);
+        selectorOffsets.add(Integer.valueOf(selectorData.size()));
+        selectorIds.put(selector, Integer.valueOf(id));
+      }
+
+      final int ruleId = ruleSelectors.size();
+      ruleSelectors.add(Integer.valueOf(id));
+      if (exception)
+        exceptionRules.set(ruleId);
+
+      for (final String domain : domains)
+      {
+        if (domain.length() == 0)
+          continue;
+        if (domain.charAt(0) == '~')
+          addDomainEntry(domain.substring(1), (ruleId << 1) | Index.EXCLUDE);
+        else
+          addDomainEntry(domain, ruleId << 1);
+      }
+
+      if (!hasIncludes)
+      {
+        genericRules.set(ruleId);
+        if (exception)
+        {
+          genericExceptionRules.add(Integer.valueOf(ruleId));
+          genericExceptionSelectors.add(Integer.valueOf(id));
+        }
+        else
+        {
+          genericHidingRules.add(Integer.valueOf(ruleId));
+          genericHidingSelectors.add(Integer.valueOf(id));
+        }
+      }
+    }
+
+    private void addDomainEntry(final String domain, final int entry)
+    {
+      List<Integer> entries = domainEntries.get(domain);
+      if (entries == null)
+      {
+        entries = new ArrayList<Integer>(2);
+        domainEntries.put(domain, entries);
+      }
+      // A domain listed twice by the same rule, the later one counts
+      final int last = entries.size() - 1;
+      if (last >= 0 && entries.get(last).intValue() >>> 1 == entry >>> 1)
+        entries.set(last, Integer.valueOf(entry));
+      else
+        entries.add(Integer.valueOf(entry));
+    }
+
+    static int[] toArray(final List<Integer> list)
+    {
+      final int[] array = new int[list.size()];
+      for (int i = 0; i < array.length; i++)
+        array[i] = list.get(i).intValue();
+      return array;
+    }
+  }
+}
@@ -17,6 +17,7 @@
 
 package org.adblockplus.android;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
@@ -26,6 +27,8 @@ import java.util.Properties;
 import org.adblockplus.android.configurators.ProxyConfigurator;
 import org.adblockplus.android.configurators.ProxyConfigurators;
 import org.adblockplus.android.configurators.ProxyRegistrationType;
+import org.adblockplus.brazil.RequestHandler;
+import org.adblockplus.brazil.RequestLog;
 import org.adblockplus.libadblockplus.Notification.Type;
 import org.apache.commons.lang.StringUtils;
 
@@ -60,6 +63,41 @@ public class ProxyService extends Service implements OnSharedPreferenceChangeLis
 
   private static final boolean LOG_REQUESTS = false;
 
+  /**
+   * Records all requests to a binary log in the cache directory, see
+   * {@link RequestLog}.
+   */
+  private static final boolean RECORD_REQUESTS = false;
+
+  /**
+   * Number of log messages the proxy queues for writing before dropping.
+   */
+  private static final int LOG_CAPACITY = 1024;
+
+  private static final boolean PREFETCH_DECISIONS = true;
+
+  private static final boolean PIPELINE_LOOKAHEAD = true;
+
+  /**
+   * Lets busy browser connections stay open longer and closes idle ones
+   * sooner under load, see {@link Server#adaptiveKeepAlive}.
+   */
+  private static final boolean ADAPTIVE_KEEP_ALIVE = true;
+
+  /**
+   * How element hiding selectors are added to pages, see
+   * {@link RequestHandler#ELEMHIDE_MODE}. Linking the stylesheet keeps the
+   * selectors out of every page, but pages are still decoded and rewritten to
+   * insert the link. The Link header mode would leave them untouched, but
+   * Android browsers ignore stylesheet Link headers.
+   */
+  private static final String ELEMHIDE_MODE = RequestHandler.ELEMHIDE_LINK;
+
+  /**
+   * How requests are handled until the filter engine has been loaded.
+   */
+  private static final AdblockPlus.InterimPolicy INTERIM_POLICY = AdblockPlus.InterimPolicy.WAIT;
+
   private static final long POSITION_RIGHT = Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD ? Long.MIN_VALUE : Long.MAX_VALUE;
 
   /**
@@ -100,6 +138,8 @@ public class ProxyService extends Service implements OnSharedPreferenceChangeLis
   {
     super.onCreate();
 
+    final long startTime = System.currentTimeMillis();
+
     StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
         .permitAll()
         .penaltyLog()
@@ -123,6 +163,17 @@ public class ProxyService extends Service implements OnSharedPreferenceChangeLis
       proxyPass = prefs.getString(getString(R.string.pref_proxypass), null);
     }
 
+    // Load the filter engine in background, the proxy serves requests according
+    // to the interim policy until it is ready
+    final AdblockPlus application = AdblockPlus.getApplication();
+    application.setInterimPolicy(INTERIM_POLICY);
+    if (prefs.getBoolean(getString(R.string.pref_enabled), false))
+    {
+      if (!application.isFilteringEnabled())
+        application.setFilteringEnabled(true);
+      application.startEngineAsync();
+    }
+
     registerReceiver(this.proxyReceiver, new IntentFilter(ProxyService.BROADCAST_PROXY_FAILED));
     registerReceiver(this.proxyStateChangedReceiver, new IntentFilter(ProxyService.PROXY_STATE_CHANGED_ACTION));
 
@@ -193,11 +244,11 @@ public class ProxyService extends Service implements OnSharedPreferenceChangeLis
       switch (this.getProxyRegistrationType().getProxyType())
       {
       case HTTP:
-        proxyConfiguration.put("main.handlers", "urlmodifier adblock");
+        proxyConfiguration.put("main.handlers", "urlmodifier elemhide adblock");
         proxyConfiguration.put("urlmodifier.class", "org.adblockplus.brazil.TransparentProxyHandler");
         break;
       case HTTPS:
-        proxyConfiguration.put("main.handlers", "https adblock");
+        proxyConfiguration.put("main.handlers", "https elemhide adblock");
         proxyConfiguration.put("https.class", "org.adblockplus.brazil.SSLConnectionHandler");
         break;
       default:
@@ -205,16 +256,27 @@ public class ProxyService extends Service implements OnSharedPreferenceChangeLis
             .putExtra("msg", "Unsupported proxy server type: " + this.getProxyRegistrationType().getProxyType()));
         return;
       }
+      proxyConfiguration.put("elemhide.class", "org.adblockplus.brazil.ElementHidingStylesheetHandler");
       proxyConfiguration.put("adblock.class", "org.adblockplus.brazil.RequestHandler");
+      proxyConfiguration.put("adblock." + RequestHandler.ELEMHIDE_MODE, ELEMHIDE_MODE);
+      proxyConfiguration.put("adblock." + RequestHandler.MATCH_TIMEOUT, String.valueOf(getResources().getInteger(R.integer.def_matchtimeout)));
       if (LOG_REQUESTS)
         proxyConfiguration.put("adblock.proxylog", "yes");
+      if (RECORD_REQUESTS)
+        proxyConfiguration.put("adblock." + RequestHandler.REQUEST_LOG, new File(getCacheDir(), RequestLog.FILE_NAME).getPath());
+      if (PREFETCH_DECISIONS)
+        proxyConfiguration.put("adblock." + RequestHandler.PREFETCH, "yes");
+      if (PIPELINE_LOOKAHEAD)
+        proxyConfiguration.put("adblock." + RequestHandler.PIPELINE_LOOKAHEAD, "yes");
 
       configureUserProxy(proxyConfiguration, proxyHost, proxyPort, proxyExcl, proxyUser, proxyPass);
 
       proxy = new ProxyServer();
       proxy.logLevel = Server.LOG_LOG;
+      proxy.adaptiveKeepAlive = ADAPTIVE_KEEP_ALIVE;
       proxy.setup(listen, proxyConfiguration.getProperty("handler"), proxyConfiguration);
       proxy.start();
+      Log.i(TAG, "Proxy listening after " + (System.currentTimeMillis() - startTime) + " ms");
     }
 
     prefs.registerOnSharedPreferenceChangeListener(this);
@@ -575,8 +637,49 @@ public class ProxyService extends Service implements OnSharedPreferenceChangeLis
     }
   };
 
+  private static final class LogMessage
+  {
+    final int priority;
+    final String tag;
+    final String message;
+
+    LogMessage(final int priority, final String tag, final String message)
+    {
+      this.priority = priority;
+      this.tag = tag;
+      this.message = message;
+    }
+  }
+
+  /**
+   * Writes server log messages to the Android log on a background thread,
+   * so that connection threads never wait for it.
+   */
   final class ProxyServer extends Server
   {
+    private final AsyncWriter<LogMessage> logWriter = new AsyncWriter<LogMessage>("Proxy log", LOG_CAPACITY,
+        new AsyncWriter.Sink<LogMessage>()
+        {
+          private long reportedDrops = 0;
+
+          @Override
+          public void write(final LogMessage message)
+          {
+            Log.println(message.priority, message.tag, message.message);
+          }
+
+          @Override
+          public void flush()
+          {
+            final long drops = ProxyServer.this.logWriter.getDroppedCount();
+            if (drops != reportedDrops)
+            {
+              Log.w(TAG, (drops - reportedDrops) + " log messages dropped");
+              reportedDrops = drops;
+            }
+          }
+        });
+
     @Override
     public void close()
     {
@@ -591,6 +694,8 @@ public class ProxyService extends Service implements OnSharedPreferenceChangeLis
         // ignore - it always happens
       }
       log(LOG_WARNING, null, "server stopped");
+      logWriter.shutdown();
+      RequestLog.closeAll();
     }
 
     @Override
@@ -598,9 +703,18 @@ public class ProxyService extends Service implements OnSharedPreferenceChangeLis
     {
       if (level <= logLevel)
       {
-        Log.println(7 - level, obj != null ? obj.toString() : TAG, message);
+        logWriter.offer(new LogMessage(7 - level, obj != null ? obj.toString() : TAG, message));
       }
     }
+
+    /**
+     * @return number of log messages dropped because the writer could not
+     *         keep up
+     */
+    public long getDroppedLogCount()
+    {
+      return logWriter.getDroppedCount();
+    }
   }
 
   private void startNotificationWatcher()
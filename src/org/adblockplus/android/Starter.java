@@ -51,7 +51,7 @@ public class Starter extends BroadcastReceiver
     {
       final AdblockPlus application = AdblockPlus.getApplication();
       application.setFilteringEnabled(true);
-      application.startEngine();
+      application.startEngineAsync();
     }
     if (enabled || (proxyenabled && !autoconfigured))
       context.startService(new Intent(context, ProxyService.class));
@@ -0,0 +1,328 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.adblockplus.libadblockplus.DisposableScope;
+import org.adblockplus.libadblockplus.Subscription;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Schedules subscription updates and runs the downloads they cause on a
+ * small pool of background priority threads, so that a refresh never
+ * competes with proxy connections. Downloads of the primary subscriptions
+ * go first, at most {@link #MAX_DOWNLOADS_PER_HOST} run against the same
+ * host (further downloads wait without occupying a thread), and
+ * subscriptions whose downloads failed are retried with an exponentially
+ * growing delay.
+ */
+public class SubscriptionUpdateScheduler
+{
+  private static final String TAG = Utils.getTag(SubscriptionUpdateScheduler.class);
+
+  private static final int MAX_DOWNLOADS = 3;
+  private static final int MAX_DOWNLOADS_PER_HOST = 2;
+
+  /**
+   * Secondary subscriptions are started with a random delay up to this many
+   * milliseconds, so that they do not all hit the network at once.
+   */
+  private static final int MAX_JITTER = 2000;
+
+  private static final long MIN_BACKOFF = TimeUnit.MINUTES.toMillis(1);
+  private static final long MAX_BACKOFF = TimeUnit.HOURS.toMillis(1);
+
+  private final ThreadPoolExecutor downloadExecutor = new ThreadPoolExecutor(MAX_DOWNLOADS, MAX_DOWNLOADS,
+      30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), Utils.newDaemonThreadFactory("SubscriptionDownload"));
+
+  private final ScheduledExecutorService updateExecutor = Executors.newSingleThreadScheduledExecutor(
+      Utils.newDaemonThreadFactory("SubscriptionUpdate"));
+
+  private final Random random = new Random();
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * Guarded by itself.
+   */
+  private final Map<String, HostState> hosts = new HashMap<String, HostState>();
+
+  /**
+   * Number of consecutive failures and time of the last one per URL, guarded
+   * by itself.
+   */
+  private final Map<String, long[]> failures = new HashMap<String, long[]>();
+
+  public SubscriptionUpdateScheduler()
+  {
+    downloadExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Starts updating the given subscriptions, primary ones right away, the
+   * others with a random delay. Subscriptions that failed recently are
+   * postponed until their backoff has elapsed. Wrappers are disposed once
+   * their update has been started.
+   *
+   * @param primaryUrls
+   *          URLs of the subscriptions to update first
+   */
+  public void scheduleUpdates(final List<Subscription> subscriptions, final List<String> primaryUrls)
+  {
+    for (final Subscription subscription : subscriptions)
+    {
+      // Disposed by the update task, not by a scope the caller may have open
+      DisposableScope.keep(subscription);
+      final String url = subscription.getProperty("url").toString();
+
+      long delay = primaryUrls.contains(url) ? 0 : random.nextInt(MAX_JITTER);
+      delay = Math.max(delay, getRemainingBackoff(url));
+      if (delay > 0)
+        Log.d(TAG, "Updating " + url + " in " + delay + " ms");
+
+      try
+      {
+        updateExecutor.schedule(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            try
+            {
+              subscription.updateFilters();
+            }
+            finally
+            {
+              subscription.dispose();
+            }
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+      }
+      catch (final RejectedExecutionException e)
+      {
+        // Shut down meanwhile
+        subscription.dispose();
+      }
+    }
+  }
+
+  /**
+   * Runs a download on the download pool and waits for it.
+   *
+   * @param primary
+   *          whether the download should be preferred over others waiting
+   */
+  public <T> T download(final URL url, final boolean primary, final Callable<T> download) throws Exception
+  {
+    final DownloadTask<T> task = new DownloadTask<T>(url.getHost(), primary, sequence.getAndIncrement(), download);
+    try
+    {
+      downloadExecutor.execute(task);
+    }
+    catch (final RejectedExecutionException e)
+    {
+      throw new IOException("Update scheduler has been shut down");
+    }
+    try
+    {
+      return task.get();
+    }
+    catch (final ExecutionException e)
+    {
+      final Throwable cause = e.getCause();
+      if (cause instanceof Exception)
+        throw (Exception) cause;
+      throw e;
+    }
+  }
+
+  /**
+   * Records the outcome of a download for the failure backoff.
+   *
+   * @param key
+   *          URL without query string
+   */
+  public void recordResult(final String key, final boolean success)
+  {
+    synchronized (failures)
+    {
+      if (success)
+      {
+        failures.remove(key);
+      }
+      else
+      {
+        final long[] failure = failures.get(key);
+        final long count = failure != null ? failure[0] + 1 : 1;
+        failures.put(key, new long[] {count, System.currentTimeMillis()});
+      }
+    }
+  }
+
+  private long getRemainingBackoff(final String key)
+  {
+    synchronized (failures)
+    {
+      final long[] failure = failures.get(key);
+      if (failure == null)
+        return 0;
+      final long backoff = Math.min(MIN_BACKOFF << Math.min(failure[0] - 1, 16), MAX_BACKOFF);
+      return Math.max(0, failure[1] + backoff - System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Lets a download start if its host has a free slot, otherwise queues it
+   * for the host so that the pool thread can go on with other work.
+   *
+   * @return false if the download was queued
+   */
+  private boolean acquireHost(final DownloadTask<?> task)
+  {
+    synchronized (hosts)
+    {
+      HostState state = hosts.get(task.host);
+      if (state == null)
+      {
+        state = new HostState();
+        hosts.put(task.host, state);
+      }
+      if (state.running < MAX_DOWNLOADS_PER_HOST)
+      {
+        state.running++;
+        return true;
+      }
+      state.waiting.add(task);
+      return false;
+    }
+  }
+
+  /**
+   * Frees the slot of a finished download and hands it to the best download
+   * waiting for the same host, if any.
+   */
+  private void releaseHost(final String host)
+  {
+    final DownloadTask<?> next;
+    synchronized (hosts)
+    {
+      final HostState state = hosts.get(host);
+      next = state.waiting.poll();
+      if (next != null)
+        next.hasHostSlot = true;
+      else
+        state.running--;
+    }
+
+    if (next != null)
+    {
+      try
+      {
+        downloadExecutor.execute(next);
+      }
+      catch (final RejectedExecutionException e)
+      {
+        next.cancel(false);
+        releaseHost(host);
+      }
+    }
+  }
+
+  public void shutdown()
+  {
+    updateExecutor.shutdownNow();
+    downloadExecutor.shutdown();
+  }
+
+  private static final class HostState
+  {
+    int running = 0;
+    final PriorityQueue<DownloadTask<?>> waiting = new PriorityQueue<DownloadTask<?>>();
+  }
+
+  /**
+   * Download ordered by priority first and submission order second.
+   */
+  private final class DownloadTask<T> extends FutureTask<T> implements Comparable<DownloadTask<?>>
+  {
+    private final String host;
+    private final boolean primary;
+    private final long sequence;
+
+    /**
+     * Set when a finished download passed its host slot on to this one,
+     * guarded by the host map.
+     */
+    boolean hasHostSlot = false;
+
+    public DownloadTask(final String host, final boolean primary, final long sequence, final Callable<T> download)
+    {
+      super(download);
+      this.host = host;
+      this.primary = primary;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public void run()
+    {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+      final boolean handedOver;
+      synchronized (hosts)
+      {
+        handedOver = hasHostSlot;
+      }
+      if (!handedOver && !acquireHost(this))
+        return;
+      try
+      {
+        super.run();
+      }
+      finally
+      {
+        releaseHost(host);
+      }
+    }
+
+    @Override
+    public int compareTo(final DownloadTask<?> other)
+    {
+      if (primary != other.primary)
+        return primary ? -1 : 1;
+      return sequence < other.sequence ? -1 : (sequence > other.sequence ? 1 : 0);
+    }
+  }
+}
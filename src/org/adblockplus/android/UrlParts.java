@@ -0,0 +1,209 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+/**
+ * Splits a proxied request URL into its parts once, so that the filter
+ * engine, element hiding and the upstream request do not have to parse it
+ * again. Only offsets into the original string are kept, substrings are
+ * created on first use and remembered.
+ * <p>
+ * The parser is lenient: anything which does not look like an absolute URL
+ * simply has no host, the URL itself is still available.
+ */
+public final class UrlParts
+{
+  private final String url;
+  private final String query;
+
+  /**
+   * Index of the colon terminating the scheme, -1 if there is no authority.
+   */
+  private final int schemeEnd;
+  private final int hostStart;
+  private final int hostEnd;
+  private final int pathStart;
+  /**
+   * Explicit port, -1 if none was given, -2 if it is not a valid number.
+   */
+  private final int port;
+
+  private String fullUrl;
+  private String host;
+  private String file;
+
+  /**
+   * @param url
+   *          Request URL without query string
+   * @param query
+   *          Request query string, may be {@code null}
+   */
+  public UrlParts(final String url, final String query)
+  {
+    this.url = url;
+    this.query = query != null && query.length() > 0 ? query : null;
+
+    final int colon = url.indexOf(':');
+    if (colon <= 0 || !url.startsWith("//", colon + 1) || !isScheme(url, colon))
+    {
+      schemeEnd = -1;
+      hostStart = hostEnd = pathStart = url.length();
+      port = -1;
+      return;
+    }
+    schemeEnd = colon;
+
+    final int authorityStart = colon + 3;
+    int authorityEnd = authorityStart;
+    final int length = url.length();
+    while (authorityEnd < length)
+    {
+      final char c = url.charAt(authorityEnd);
+      if (c == '/' || c == '?' || c == '#')
+        break;
+      authorityEnd++;
+    }
+    pathStart = authorityEnd;
+
+    final int at = url.lastIndexOf('@', authorityEnd - 1);
+    hostStart = at >= authorityStart ? at + 1 : authorityStart;
+
+    // The colon of an IPv6 literal is not a port separator
+    final int bracket = url.lastIndexOf(']', authorityEnd - 1);
+    final int portColon = url.indexOf(':', Math.max(hostStart, bracket + 1));
+    if (portColon >= 0 && portColon < authorityEnd)
+    {
+      hostEnd = portColon;
+      port = parsePort(url, portColon + 1, authorityEnd);
+    }
+    else
+    {
+      hostEnd = authorityEnd;
+      port = -1;
+    }
+  }
+
+  /**
+   * @return request URL without query string
+   */
+  public String getUrl()
+  {
+    return url;
+  }
+
+  /**
+   * @return query string or {@code null} if there is none
+   */
+  public String getQuery()
+  {
+    return query;
+  }
+
+  /**
+   * @return request URL including query string
+   */
+  public String getFullUrl()
+  {
+    if (fullUrl == null)
+      fullUrl = query != null ? url + "?" + query : url;
+    return fullUrl;
+  }
+
+  /**
+   * @return true if the URL starts with {@code http://} or {@code https://}
+   *         and has a valid port
+   */
+  public boolean isHttp()
+  {
+    return port != -2 && (schemeEquals("http") || schemeEquals("https"));
+  }
+
+  /**
+   * Compares the scheme ignoring case, always false if the URL is not
+   * absolute.
+   */
+  public boolean schemeEquals(final String scheme)
+  {
+    return schemeEnd == scheme.length() && url.regionMatches(true, 0, scheme, 0, schemeEnd);
+  }
+
+  /**
+   * @return host name as it appears in the URL, empty if there is none
+   */
+  public String getHost()
+  {
+    if (host == null)
+      host = url.substring(hostStart, hostEnd);
+    return host;
+  }
+
+  /**
+   * @return explicit port or the default port of the scheme
+   */
+  public int getPort()
+  {
+    if (port >= 0)
+      return port;
+    return schemeEquals("https") ? 443 : 80;
+  }
+
+  /**
+   * @return path and query string as sent in a request line, like
+   *         {@link java.net.URL#getFile()}
+   */
+  public String getFile()
+  {
+    if (file == null)
+      file = getFullUrl().substring(pathStart);
+    return file;
+  }
+
+  @Override
+  public String toString()
+  {
+    return getFullUrl();
+  }
+
+  private static boolean isScheme(final String s, final int end)
+  {
+    for (int i = 0; i < end; i++)
+    {
+      final char c = s.charAt(i);
+      if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (i > 0 && ((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.'))))
+        return false;
+    }
+    return true;
+  }
+
+  private static int parsePort(final String s, final int start, final int end)
+  {
+    if (start == end)
+      return -1;
+    if (end - start > 5)
+      return -2;
+    int value = 0;
+    for (int i = start; i < end; i++)
+    {
+      final char c = s.charAt(i);
+      if (c < '0' || c > '9')
+        return -2;
+      value = value * 10 + (c - '0');
+    }
+    return value <= 0xFFFF ? value : -2;
+  }
+}
@@ -19,6 +19,7 @@ package org.adblockplus.android;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.concurrent.ThreadFactory;
 
 import org.adblockplus.android.updater.UpdaterActivity;
 import org.adblockplus.libadblockplus.JsValue;
@@ -44,6 +45,39 @@ public final class Utils
     return clazz.getSimpleName();
   }
 
+  /**
+   * Creates a thread factory producing named daemon threads, so that
+   * background executors never keep the process alive.
+   */
+  public static ThreadFactory newDaemonThreadFactory(final String name)
+  {
+    return new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(final Runnable runnable)
+      {
+        final Thread thread = new Thread(runnable);
+        thread.setName(name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Computes the 64 bit FNV-1a hash of a string, without allocating.
+   */
+  public static long hash64(final String s)
+  {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++)
+    {
+      hash ^= s.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
   public static String capitalizeString(final String s)
   {
     if (s == null || s.length() == 0)
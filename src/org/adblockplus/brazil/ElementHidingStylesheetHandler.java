@@ -0,0 +1,205 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.brazil;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.adblockplus.android.AdblockPlus;
+import org.adblockplus.android.UrlParts;
+import org.adblockplus.android.Utils;
+import org.apache.commons.lang.StringUtils;
+
+import sunlabs.brazil.server.Handler;
+import sunlabs.brazil.server.Request;
+import sunlabs.brazil.server.Server;
+
+/**
+ * Serves the element hiding selectors of a domain as a stylesheet, so that
+ * pages only need to reference it instead of carrying the selectors in their
+ * body. Stylesheets are kept in memory and carry a strong ETag derived from
+ * their content, which browsers use to revalidate or, since the ETag is part
+ * of the URL, to skip the request altogether.
+ * <p>
+ * The stylesheet is referenced by a reserved path on the origin of the page
+ * itself, so that browser requests for it reach the proxy in every proxy
+ * mode, including the transparent one where only connections to real hosts
+ * are redirected. This handler must come before any handler forwarding
+ * requests upstream.
+ */
+public class ElementHidingStylesheetHandler implements Handler
+{
+  public static final String STYLESHEET_PATH = "/__adblockplus__/elemhide.css";
+
+  private static final String CONTENT_TYPE = "text/css; charset=utf-8";
+  private static final String CACHE_CONTROL = "max-age=86400";
+
+  /**
+   * Immutable stylesheet of a domain.
+   */
+  public static final class Stylesheet
+  {
+    private final String[] selectors;
+    private final byte[] content;
+    private final String etag;
+    private final String path;
+
+    private Stylesheet(final String[] selectors)
+    {
+      this.selectors = selectors;
+      final String css = StringUtils.join(selectors, ",\r\n") + "{ display: none !important }\n";
+      try
+      {
+        this.content = css.getBytes("UTF-8");
+      }
+      catch (final UnsupportedEncodingException e)
+      {
+        throw new IllegalStateException(e);
+      }
+      final String hash = Long.toHexString(Utils.hash64(css));
+      this.etag = "\"" + hash + "\"";
+      this.path = STYLESHEET_PATH + "?v=" + hash;
+    }
+
+    /**
+     * @param origin
+     *          Scheme, host and port of the page, without trailing slash
+     * @return URL to reference the stylesheet with, changes with its content
+     */
+    public String getUrl(final String origin)
+    {
+      return origin + path;
+    }
+  }
+
+  private static final class Cache extends LinkedHashMap<String, Stylesheet>
+  {
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_SIZE = 64;
+
+    public Cache()
+    {
+      super(MAX_SIZE + 1, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, Stylesheet> eldest)
+    {
+      return size() > MAX_SIZE;
+    }
+  }
+
+  private static final Cache CACHE = new Cache();
+
+  private static final AtomicLong SERVED_STYLESHEETS = new AtomicLong();
+  private static final AtomicLong NOT_MODIFIED_STYLESHEETS = new AtomicLong();
+
+  private AdblockPlus application;
+
+  /**
+   * Returns the stylesheet for the given selectors of a domain, reusing the
+   * cached one if the selectors have not changed.
+   */
+  public static Stylesheet getStylesheet(final String host, final String[] selectors)
+  {
+    synchronized (CACHE)
+    {
+      final Stylesheet cached = CACHE.get(host);
+      if (cached != null && (cached.selectors == selectors || Arrays.equals(cached.selectors, selectors)))
+        return cached;
+    }
+
+    final Stylesheet stylesheet = new Stylesheet(selectors);
+    synchronized (CACHE)
+    {
+      CACHE.put(host, stylesheet);
+    }
+    return stylesheet;
+  }
+
+  public static long getServedCount()
+  {
+    return SERVED_STYLESHEETS.get();
+  }
+
+  public static long getNotModifiedCount()
+  {
+    return NOT_MODIFIED_STYLESHEETS.get();
+  }
+
+  @Override
+  public boolean init(final Server server, final String prefix)
+  {
+    application = AdblockPlus.getApplication();
+    return true;
+  }
+
+  @Override
+  public boolean respond(final Request request) throws IOException
+  {
+    if (!request.url.endsWith(STYLESHEET_PATH))
+      return false;
+
+    final UrlParts urlParts = new UrlParts(request.url, null);
+    if (!urlParts.isHttp() || !STYLESHEET_PATH.equals(urlParts.getFile()))
+      return false;
+
+    final String host = urlParts.getHost();
+    if (host.length() == 0)
+    {
+      request.sendError(404, "No stylesheet");
+      return true;
+    }
+
+    Stylesheet stylesheet;
+    synchronized (CACHE)
+    {
+      stylesheet = CACHE.get(host);
+    }
+    if (stylesheet == null)
+    {
+      // Evicted since the page was served, look the selectors up again
+      final String[] selectors = application.getSelectorsForDomain("http://" + host + "/", host);
+      if (selectors == null)
+      {
+        request.sendError(404, "No stylesheet");
+        return true;
+      }
+      stylesheet = getStylesheet(host, selectors);
+    }
+
+    request.responseHeaders.put("ETag", stylesheet.etag);
+    request.responseHeaders.put("Cache-Control", CACHE_CONTROL);
+
+    final String ifNoneMatch = request.getRequestHeader("If-None-Match");
+    if (ifNoneMatch != null && ifNoneMatch.indexOf(stylesheet.etag) != -1)
+    {
+      NOT_MODIFIED_STYLESHEETS.incrementAndGet();
+      request.sendHeaders(304, null, 0);
+      return true;
+    }
+
+    SERVED_STYLESHEETS.incrementAndGet();
+    request.sendResponse(stylesheet.content, CONTENT_TYPE);
+    return true;
+  }
+}
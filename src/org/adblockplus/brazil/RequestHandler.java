@@ -18,14 +18,14 @@
 package org.adblockplus.brazil;
 
 import java.io.EOFException;
+import java.io.File;
 import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.ConnectException;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.util.List;
@@ -37,6 +37,7 @@ import java.util.zip.InflaterInputStream;
 
 import org.adblockplus.ChunkedOutputStream;
 import org.adblockplus.android.AdblockPlus;
+import org.adblockplus.android.UrlParts;
 import org.apache.commons.lang.StringUtils;
 import org.literateprograms.BoyerMoore;
 
@@ -45,6 +46,7 @@ import sunlabs.brazil.server.Server;
 import sunlabs.brazil.util.MatchString;
 import sunlabs.brazil.util.http.HttpInputStream;
 import sunlabs.brazil.util.http.HttpRequest;
+import sunlabs.brazil.util.http.MimeHeaders;
 import android.util.Log;
 
 /**
@@ -66,6 +68,29 @@ import android.util.Log;
  * <dt>proxylog
  * <dd>If set all http headers will be logged to the console. This is for
  * debugging.
+ * <dt>matchTimeout
+ * <dd>Milliseconds to wait for the filter engine before letting a request
+ * through unblocked (defaults to 0, wait indefinitely)
+ * <dt>prefetch
+ * <dd>If set, HTML documents are scanned for subresources and their blocking
+ * decisions are computed before the browser requests them
+ * <dt>requestLog
+ * <dd>If set, the path of a file all requests and their blocking decisions
+ * are recorded to, see {@link RequestLog}
+ * <dt>pipelineLookahead
+ * <dd>If set, blocking decisions for requests the client has pipelined
+ * behind the current one are computed while the current one is handled
+ * <dt>elemhideMode
+ * <dd>How element hiding selectors are added to HTML documents:
+ * <code>inline</code> (the default) injects them as a style block,
+ * <code>link</code> injects a link to a stylesheet served by
+ * {@link ElementHidingStylesheetHandler} and <code>header</code> references
+ * that stylesheet in a Link response header. Both <code>inline</code> and
+ * <code>link</code> still decode and rewrite the document, <code>link</code>
+ * only keeps the selectors out of it. <code>header</code> passes the document
+ * through untouched, but only works in browsers honoring stylesheet Link
+ * headers. Documents not served over plain HTTP always use
+ * <code>inline</code>, the proxy could not intercept their stylesheet
  *
  * </dl>
  *
@@ -81,11 +106,24 @@ import android.util.Log;
  * respond} for a more detailed explanation.
  */
 
-public class RequestHandler extends BaseRequestHandler
+public class RequestHandler extends BaseRequestHandler implements Server.Lookahead
 {
+  public static final String MATCH_TIMEOUT = "matchTimeout";
+  public static final String PREFETCH = "prefetch";
+  public static final String PIPELINE_LOOKAHEAD = "pipelineLookahead";
+  public static final String REQUEST_LOG = "requestLog";
+  public static final String ELEMHIDE_MODE = "elemhideMode";
+
+  public static final String ELEMHIDE_INLINE = "inline";
+  public static final String ELEMHIDE_LINK = "link";
+  public static final String ELEMHIDE_HEADER = "header";
+
   private AdblockPlus application;
   private String via;
-  private static final Pattern RE_HTTP = Pattern.compile("^https?:");
+  private long matchTimeout = 0;
+  private boolean shouldPrefetch;
+  private String elemhideMode;
+  private RequestLog requestLog;
 
   private static final AtomicLong BLOCKED_REQUESTS = new AtomicLong();
   private static final AtomicLong UNBLOCKED_REQUESTS = new AtomicLong();
@@ -108,24 +146,90 @@ public class RequestHandler extends BaseRequestHandler
     application = AdblockPlus.getApplication();
     via = " " + server.hostName + ":" + server.listen.getLocalPort() + " (" + server.name + ")";
 
+    final String s = server.props.getProperty(prefix + MATCH_TIMEOUT);
+    try
+    {
+      matchTimeout = Long.decode(s).longValue();
+    }
+    catch (final Exception e)
+    {
+    }
+
+    shouldPrefetch = (server.props.getProperty(prefix + PREFETCH) != null);
+    elemhideMode = server.props.getProperty(prefix + ELEMHIDE_MODE, ELEMHIDE_INLINE);
+
+    if (server.props.getProperty(prefix + PIPELINE_LOOKAHEAD) != null)
+    {
+      server.lookahead = this;
+    }
+
+    final String requestLogPath = server.props.getProperty(prefix + REQUEST_LOG);
+    if (requestLogPath != null)
+    {
+      try
+      {
+        requestLog = RequestLog.open(new File(requestLogPath));
+      }
+      catch (final IOException e)
+      {
+        Log.e(prefix, "Failed to open request log", e);
+      }
+    }
+
     return true;
   }
 
+  /**
+   * Starts computing the blocking decision of a pipelined request, so that
+   * it is ready by the time the request is handled.
+   */
+  @Override
+  public void queued(final Request request, final String method, final String url, final String query, final MimeHeaders headers)
+  {
+    String absoluteUrl = url;
+    // Same as TransparentProxyHandler does once the request is handled
+    if (url.startsWith("/"))
+    {
+      final String host = headers.get("host");
+      if (host == null)
+        return;
+      absoluteUrl = "http://" + host + url;
+    }
+
+    final UrlParts urlParts = new UrlParts(absoluteUrl, query);
+    if (urlParts.isHttp())
+    {
+      application.prefetchDecision(headers.get("referer"), urlParts.getFullUrl(), headers.get("accept"));
+    }
+  }
+
   @Override
   public boolean respond(final Request request) throws IOException
   {
     boolean block = false;
 
+    // Parsed once, shared by filtering, element hiding and the upstream request
+    final UrlParts urlParts = new UrlParts(request.url, request.query);
+    final String referrer = request.getRequestHeader("referer");
+    final String accept = request.getRequestHeader("accept");
+
     try
     {
-      block = application.matches(request.url, request.query, request.getRequestHeader("referer"), request.getRequestHeader("accept"));
+      block = application.matches(urlParts, referrer, accept, matchTimeout);
     }
     catch (final Exception e)
     {
       Log.e(prefix, "Filter error", e);
     }
 
-    request.log(Server.LOG_LOG, prefix, block + ": " + request.url);
+    if (request.server.isLoggable(Server.LOG_LOG))
+    {
+      request.log(Server.LOG_LOG, prefix, block + ": " + request.url);
+    }
+    if (requestLog != null)
+    {
+      requestLog.record(request.method, urlParts.getFullUrl(), referrer, accept, block);
+    }
 
     int count = request.server.requestCount;
     if (shouldLogHeaders)
@@ -144,17 +248,12 @@ public class RequestHandler extends BaseRequestHandler
     UNBLOCKED_REQUESTS.incrementAndGet();
 
     // Do not further process non-http requests
-    if (!RE_HTTP.matcher(request.url).find())
+    if (!urlParts.isHttp())
     {
       return false;
     }
 
-    String url = request.url;
-
-    if ((request.query != null) && (request.query.length() > 0))
-    {
-      url += "?" + request.query;
-    }
+    final String url = urlParts.getFullUrl();
 
     /*
      * "Proxy-Connection" may be used (instead of just "Connection")
@@ -169,11 +268,12 @@ public class RequestHandler extends BaseRequestHandler
 
     HttpRequest.removePointToPointHeaders(request.headers, false);
 
-    final HttpRequest target = new HttpRequest(url);
+    final HttpRequest target = new HttpRequest(url, urlParts.getHost(), urlParts.getPort(), urlParts.getFile());
     try
     {
       target.setMethod(request.method);
-      request.headers.copyTo(target.requestHeaders);
+      // The client headers are not needed anymore, hand them over
+      request.headers.moveTo(target.requestHeaders);
 
       if (proxyHost != null)
       {
@@ -203,7 +303,9 @@ public class RequestHandler extends BaseRequestHandler
       HttpRequest.removePointToPointHeaders(target.responseHeaders, true);
 
       request.setStatus(target.getResponseCode());
-      target.responseHeaders.copyTo(request.responseHeaders);
+      // Read before the response headers are handed over to the client response
+      final int contentLength = target.getContentLength();
+      target.responseHeaders.moveTo(request.responseHeaders);
       try
       {
         request.responseHeaders.add("Via", target.status.substring(0, 8) + via);
@@ -215,27 +317,52 @@ public class RequestHandler extends BaseRequestHandler
 
       // Detect if we need to add ElemHide filters
       final String type = request.responseHeaders.get("Content-Type");
+      if (target.getResponseCode() == 200)
+      {
+        application.learnContentType(request.url, type);
+      }
+
+      final boolean isHtml = type != null && type.toLowerCase().startsWith("text/html");
+
+      SubresourceScanner scanner = null;
+      if (shouldPrefetch && isHtml && target.getResponseCode() == 200)
+      {
+        final String documentUrl = url;
+        scanner = new SubresourceScanner(new SubresourceScanner.Listener()
+        {
+          @Override
+          public void subresourceFound(final String subresourceUrl, final String accept)
+          {
+            application.prefetchDecision(documentUrl, subresourceUrl, accept);
+          }
+        });
+      }
 
       String[] selectors = null;
-      if (type != null && type.toLowerCase().startsWith("text/html"))
+      final String reqHost = urlParts.getHost();
+      if (isHtml)
       {
-        String reqHost = "";
+        selectors = application.getSelectorsForDomain(request.url, reqHost);
+      }
 
-        try
-        {
-          reqHost = (new URL(request.url)).getHost();
-        }
-        catch (final MalformedURLException e)
+      // Reference a stylesheet served by us instead of inlining the selectors
+      String stylesheetUrl = null;
+      if (selectors != null && target.getResponseCode() == 200 && reqHost.length() > 0
+          && urlParts.schemeEquals("http") && !ELEMHIDE_INLINE.equals(elemhideMode))
+      {
+        final int port = urlParts.getPort();
+        final String origin = "http://" + reqHost + (port != 80 ? ":" + port : "");
+        stylesheetUrl = ElementHidingStylesheetHandler.getStylesheet(reqHost, selectors).getUrl(origin);
+        if (ELEMHIDE_HEADER.equals(elemhideMode))
         {
-          // We are transparent, it's not our deal if it's malformed.
+          request.responseHeaders.add("Link", "<" + stylesheetUrl + ">; rel=stylesheet");
+          selectors = null;
         }
-
-        selectors = application.getSelectorsForDomain(reqHost);
       }
+
       // If no filters are applicable just pass through the response
       if (selectors == null || target.getResponseCode() != 200)
       {
-        final int contentLength = target.getContentLength();
         if (contentLength == 0)
         {
           // we do not use request.sendResponse to avoid arbitrary
@@ -244,14 +371,20 @@ public class RequestHandler extends BaseRequestHandler
         }
         else
         {
-          request.sendResponse(target.getInputStream(), contentLength, null, -1);
+          InputStream in = target.getInputStream();
+          // Compressed documents are only scanned if we decode them anyway
+          if (scanner != null && request.responseHeaders.get("Content-Encoding") == null)
+          {
+            in = scanner.wrap(in);
+          }
+          request.sendResponse(in, contentLength, null, -1);
         }
       }
       // Insert filters otherwise
       else
       {
         final HttpInputStream his = target.getInputStream();
-        int size = target.getContentLength();
+        int size = contentLength;
         if (size < 0)
         {
           size = Integer.MAX_VALUE;
@@ -332,6 +465,10 @@ public class RequestHandler extends BaseRequestHandler
             break;
           }
           size -= count;
+          if (scanner != null && count > 0)
+          {
+            scanner.scan(buf, 0, count);
+          }
           try
           {
             // Search for <html> tag
@@ -343,9 +480,16 @@ public class RequestHandler extends BaseRequestHandler
                 // Add filters right before match
                 final int m = matches.get(0);
                 out.write(buf, 0, m);
-                out.write("<style type=\"text/css\">\n".getBytes());
-                out.write(StringUtils.join(selectors, ",\r\n").getBytes(charsetName));
-                out.write("{ display: none !important }</style>\n".getBytes());
+                if (stylesheetUrl != null)
+                {
+                  out.write(("<link rel=\"stylesheet\" type=\"text/css\" href=\"" + stylesheetUrl.replace("&", "&amp;") + "\">\n").getBytes());
+                }
+                else
+                {
+                  out.write("<style type=\"text/css\">\n".getBytes());
+                  out.write(StringUtils.join(selectors, ",\r\n").getBytes(charsetName));
+                  out.write("{ display: none !important }</style>\n".getBytes());
+                }
                 out.write(buf, m, count - m);
                 sent = true;
                 continue;
@@ -0,0 +1,367 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.brazil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.adblockplus.android.AsyncWriter;
+
+/**
+ * Optional binary log of the requests seen by {@link RequestHandler} and the
+ * decisions made for them. Records are written in background and can be read
+ * back with {@link Reader}, e.g. to replay real traffic against the filter
+ * engine.
+ * <p>
+ * The file starts with a magic number and format version, followed by
+ * records consisting of the time, the decision and the method, URL,
+ * referrer and accept header as length-prefixed UTF-8 strings (length -1
+ * for {@code null}). Records are appended to an existing log of the same
+ * format, after cutting off a record left incomplete by a crash. A file in
+ * another format is kept with an {@code .old} suffix and a new log is
+ * started. The file is consistent whenever all queued records have been
+ * written.
+ */
+public final class RequestLog
+{
+  public static final String FILE_NAME = "requests.bin";
+
+  private static final int MAGIC = 0x4142504C; // "ABPL"
+  private static final int FORMAT_VERSION = 1;
+  private static final int CAPACITY = 4096;
+  private static final int MAX_STRING_LENGTH = 65536;
+  private static final long CLOSE_TIMEOUT = 1000;
+
+  /**
+   * Open logs by path, handlers are created again whenever the proxy is
+   * restarted but the file has to be written by a single writer.
+   */
+  private static final Map<String, RequestLog> logs = new HashMap<String, RequestLog>();
+
+  public static final class Entry
+  {
+    public final long time;
+    public final boolean blocked;
+    public final String method;
+    public final String url;
+    public final String referrer;
+    public final String accept;
+
+    public Entry(final long time, final boolean blocked, final String method, final String url, final String referrer,
+        final String accept)
+    {
+      this.time = time;
+      this.blocked = blocked;
+      this.method = method;
+      this.url = url;
+      this.referrer = referrer;
+      this.accept = accept;
+    }
+  }
+
+  private final String path;
+  private final DataOutputStream out;
+  private final AsyncWriter<Entry> writer;
+
+  private RequestLog(final File file) throws IOException
+  {
+    path = file.getAbsolutePath();
+    final boolean isNew = prepare(file);
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    if (isNew)
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.flush();
+    }
+
+    writer = new AsyncWriter<Entry>("Request log", CAPACITY, new AsyncWriter.Sink<Entry>()
+    {
+      @Override
+      public void write(final Entry entry) throws IOException
+      {
+        out.writeLong(entry.time);
+        out.writeBoolean(entry.blocked);
+        writeString(out, entry.method);
+        writeString(out, entry.url);
+        writeString(out, entry.referrer);
+        writeString(out, entry.accept);
+      }
+
+      @Override
+      public void flush() throws IOException
+      {
+        out.flush();
+      }
+    });
+  }
+
+  /**
+   * Returns the log writing to the given file, creating it if necessary.
+   */
+  public static synchronized RequestLog open(final File file) throws IOException
+  {
+    final String path = file.getAbsolutePath();
+    RequestLog log = logs.get(path);
+    if (log == null)
+    {
+      log = new RequestLog(file);
+      logs.put(path, log);
+    }
+    return log;
+  }
+
+  /**
+   * Closes all open logs, writing the records queued so far.
+   */
+  public static void closeAll()
+  {
+    final RequestLog[] open;
+    synchronized (RequestLog.class)
+    {
+      open = logs.values().toArray(new RequestLog[logs.size()]);
+    }
+    for (final RequestLog log : open)
+      log.close();
+  }
+
+  /**
+   * Writes the records queued so far and closes the file. Records offered
+   * afterwards are dropped, {@link #open(File)} returns a new log.
+   */
+  public void close()
+  {
+    synchronized (RequestLog.class)
+    {
+      if (logs.get(path) == this)
+        logs.remove(path);
+    }
+    writer.shutdown();
+    try
+    {
+      writer.awaitTermination(CLOSE_TIMEOUT);
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    try
+    {
+      out.close();
+    }
+    catch (final IOException e)
+    {
+      // Nothing left to do about it
+    }
+  }
+
+  /**
+   * Queues a record, never blocks.
+   *
+   * @param url
+   *          Request URL including query string
+   */
+  public void record(final String method, final String url, final String referrer, final String accept,
+      final boolean blocked)
+  {
+    writer.offer(new Entry(System.currentTimeMillis(), blocked, method, url, referrer, accept));
+  }
+
+  /**
+   * @return number of records dropped because the writer could not keep up
+   */
+  public long getDroppedCount()
+  {
+    return writer.getDroppedCount();
+  }
+
+  /**
+   * Makes sure records can be appended to the file, see the class
+   * description.
+   *
+   * @return true if a new log has to be started
+   */
+  private static boolean prepare(final File file) throws IOException
+  {
+    if (!file.exists() || file.length() == 0)
+      return true;
+
+    long validLength = -1;
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try
+    {
+      if (in.readInt() == MAGIC && in.readInt() == FORMAT_VERSION)
+      {
+        validLength = 8;
+        long length;
+        while ((length = skipRecord(in)) > 0)
+          validLength += length;
+      }
+    }
+    catch (final EOFException e)
+    {
+      // Incomplete header
+    }
+    finally
+    {
+      in.close();
+    }
+
+    if (validLength < 0)
+    {
+      final File old = new File(file.getPath() + ".old");
+      old.delete();
+      if (!file.renameTo(old) && !file.delete())
+        throw new IOException("Failed to move " + file + " aside");
+      return true;
+    }
+
+    if (validLength < file.length())
+    {
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try
+      {
+        raf.setLength(validLength);
+      }
+      finally
+      {
+        raf.close();
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return length of the record or -1 if it is incomplete or corrupt
+   */
+  private static long skipRecord(final DataInputStream in) throws IOException
+  {
+    try
+    {
+      in.readLong();
+      in.readBoolean();
+      long length = 9;
+      for (int i = 0; i < 4; i++)
+      {
+        final int stringLength = in.readInt();
+        if (stringLength < -1 || stringLength > MAX_STRING_LENGTH)
+          return -1;
+        length += 4;
+        if (stringLength > 0)
+        {
+          if (in.skipBytes(stringLength) != stringLength)
+            return -1;
+          length += stringLength;
+        }
+      }
+      return length;
+    }
+    catch (final EOFException e)
+    {
+      return -1;
+    }
+  }
+
+  private static void writeString(final DataOutputStream out, final String s) throws IOException
+  {
+    if (s == null)
+    {
+      out.writeInt(-1);
+      return;
+    }
+    final byte[] bytes = s.getBytes("UTF-8");
+    final int length = Math.min(bytes.length, MAX_STRING_LENGTH);
+    out.writeInt(length);
+    out.write(bytes, 0, length);
+  }
+
+  /**
+   * Reads records from a request log.
+   */
+  public static final class Reader implements Closeable
+  {
+    private final DataInputStream in;
+
+    public Reader(final InputStream in) throws IOException
+    {
+      this.in = new DataInputStream(new BufferedInputStream(in));
+      if (this.in.readInt() != MAGIC || this.in.readInt() != FORMAT_VERSION)
+        throw new IOException("Not a request log");
+    }
+
+    /**
+     * @return the next record or {@code null} at the end of the log
+     */
+    public Entry read() throws IOException
+    {
+      final long time;
+      try
+      {
+        time = in.readLong();
+      }
+      catch (final EOFException e)
+      {
+        return null;
+      }
+      final boolean blocked = in.readBoolean();
+      final String method = readString();
+      final String url = readString();
+      final String referrer = readString();
+      final String accept = readString();
+      return new Entry(time, blocked, method, url, referrer, accept);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      in.close();
+    }
+
+    private String readString() throws IOException
+    {
+      final int length = in.readInt();
+      if (length < 0)
+        return null;
+      if (length > MAX_STRING_LENGTH)
+        throw new IOException("Corrupt request log");
+      final byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      try
+      {
+        return new String(bytes, "UTF-8");
+      }
+      catch (final UnsupportedEncodingException e)
+      {
+        throw new IOException(e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,284 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.brazil;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Incrementally scans an HTML byte stream for scripts, images, stylesheets
+ * and frames and reports their URLs, so that blocking decisions can be made
+ * before the browser requests them. The scanner is deliberately simple, it
+ * only looks at tags as they appear and does not build a document.
+ */
+public class SubresourceScanner
+{
+  /**
+   * Receives subresources found in a document.
+   */
+  public interface Listener
+  {
+    /**
+     * @param url
+     *          URL as it appears in the document, possibly relative
+     * @param accept
+     *          Accept header the browser is likely to send for it, may be
+     *          {@code null}
+     */
+    void subresourceFound(String url, String accept);
+  }
+
+  private static final int MAX_TAG_LENGTH = 2048;
+  private static final int MAX_SUBRESOURCES = 256;
+
+  private static final byte[] TAG_SCRIPT = "script".getBytes();
+  private static final byte[] TAG_IMG = "img".getBytes();
+  private static final byte[] TAG_LINK = "link".getBytes();
+  private static final byte[] TAG_IFRAME = "iframe".getBytes();
+
+  private final Listener listener;
+  private final byte[] tag = new byte[MAX_TAG_LENGTH];
+  /**
+   * Number of bytes collected for the current tag, -1 if outside of a tag.
+   */
+  private int tagLength = -1;
+  private boolean overflow = false;
+  private byte quote = 0;
+  private int found = 0;
+
+  public SubresourceScanner(final Listener listener)
+  {
+    this.listener = listener;
+  }
+
+  /**
+   * Wraps the stream so that everything read from it is scanned.
+   */
+  public InputStream wrap(final InputStream in)
+  {
+    return new FilterInputStream(in)
+    {
+      @Override
+      public int read() throws IOException
+      {
+        final int b = super.read();
+        if (b >= 0)
+          scan(new byte[] {(byte) b}, 0, 1);
+        return b;
+      }
+
+      @Override
+      public int read(final byte[] buffer, final int offset, final int count) throws IOException
+      {
+        final int read = super.read(buffer, offset, count);
+        if (read > 0)
+          scan(buffer, offset, read);
+        return read;
+      }
+    };
+  }
+
+  /**
+   * Feeds the next chunk of the document to the scanner.
+   */
+  public void scan(final byte[] buffer, final int offset, final int count)
+  {
+    final int end = offset + count;
+    for (int i = offset; i < end && found < MAX_SUBRESOURCES; i++)
+    {
+      final byte b = buffer[i];
+
+      if (tagLength < 0)
+      {
+        if (b == '<')
+        {
+          tagLength = 0;
+          overflow = false;
+          quote = 0;
+        }
+        continue;
+      }
+
+      if (tagLength == 0 && !overflow && !isLetter(b))
+      {
+        // Not a start tag
+        tagLength = -1;
+        continue;
+      }
+
+      if (quote != 0)
+      {
+        if (b == quote)
+          quote = 0;
+      }
+      else if (b == '"' || b == '\'')
+      {
+        quote = b;
+      }
+      else if (b == '>')
+      {
+        if (!overflow)
+          processTag();
+        tagLength = -1;
+        continue;
+      }
+
+      if (tagLength < MAX_TAG_LENGTH)
+        tag[tagLength++] = b;
+      else
+        overflow = true;
+    }
+  }
+
+  private void processTag()
+  {
+    int nameEnd = 0;
+    while (nameEnd < tagLength && !isSpace(tag[nameEnd]) && tag[nameEnd] != '/')
+      nameEnd++;
+
+    final boolean isScript = nameEquals(nameEnd, TAG_SCRIPT);
+    final boolean isImage = nameEquals(nameEnd, TAG_IMG);
+    final boolean isLink = nameEquals(nameEnd, TAG_LINK);
+    final boolean isFrame = nameEquals(nameEnd, TAG_IFRAME);
+    if (!isScript && !isImage && !isLink && !isFrame)
+      return;
+
+    String src = null;
+    String href = null;
+    String rel = null;
+
+    int i = nameEnd;
+    while (i < tagLength)
+    {
+      while (i < tagLength && (isSpace(tag[i]) || tag[i] == '/'))
+        i++;
+      final int attrStart = i;
+      while (i < tagLength && !isSpace(tag[i]) && tag[i] != '=' && tag[i] != '/')
+        i++;
+      final int attrEnd = i;
+      while (i < tagLength && isSpace(tag[i]))
+        i++;
+      if (attrStart == attrEnd)
+      {
+        i++;
+        continue;
+      }
+
+      int valueStart = i;
+      int valueEnd = i;
+      if (i < tagLength && tag[i] == '=')
+      {
+        i++;
+        while (i < tagLength && isSpace(tag[i]))
+          i++;
+        if (i < tagLength && (tag[i] == '"' || tag[i] == '\''))
+        {
+          final byte q = tag[i++];
+          valueStart = i;
+          while (i < tagLength && tag[i] != q)
+            i++;
+          valueEnd = i;
+          i++;
+        }
+        else
+        {
+          valueStart = i;
+          while (i < tagLength && !isSpace(tag[i]))
+            i++;
+          valueEnd = i;
+        }
+      }
+
+      if (attrEquals(attrStart, attrEnd, "src"))
+        src = decode(valueStart, valueEnd);
+      else if (attrEquals(attrStart, attrEnd, "href"))
+        href = decode(valueStart, valueEnd);
+      else if (attrEquals(attrStart, attrEnd, "rel"))
+        rel = decode(valueStart, valueEnd);
+    }
+
+    if (isScript)
+      report(src, null);
+    else if (isImage)
+      report(src, "image/*");
+    else if (isFrame)
+      report(src, "text/html");
+    else if (rel != null && rel.toLowerCase().contains("stylesheet"))
+      report(href, "text/css");
+  }
+
+  private void report(final String url, final String accept)
+  {
+    if (url == null || url.length() == 0 || url.charAt(0) == '#')
+      return;
+    final String lowerCase = url.toLowerCase();
+    if (lowerCase.startsWith("data:") || lowerCase.startsWith("javascript:") || lowerCase.startsWith("about:"))
+      return;
+
+    found++;
+    listener.subresourceFound(url.replace("&amp;", "&"), accept);
+  }
+
+  private String decode(final int start, final int end)
+  {
+    try
+    {
+      return new String(tag, start, end - start, "ISO-8859-1").trim();
+    }
+    catch (final UnsupportedEncodingException e)
+    {
+      return null;
+    }
+  }
+
+  private boolean nameEquals(final int length, final byte[] name)
+  {
+    if (length != name.length)
+      return false;
+    for (int i = 0; i < length; i++)
+    {
+      if ((tag[i] | 0x20) != name[i])
+        return false;
+    }
+    return true;
+  }
+
+  private boolean attrEquals(final int start, final int end, final String name)
+  {
+    if (end - start != name.length())
+      return false;
+    for (int i = start; i < end; i++)
+    {
+      if ((tag[i] | 0x20) != name.charAt(i - start))
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean isLetter(final byte b)
+  {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+  }
+
+  private static boolean isSpace(final byte b)
+  {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+  }
+}
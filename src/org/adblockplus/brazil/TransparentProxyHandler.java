@@ -39,7 +39,9 @@ public class TransparentProxyHandler implements Handler
   @Override
   public boolean respond(final Request request) throws IOException
   {
-    if (!request.url.contains("://"))
+    // Origin-form request targets always start with a slash, no need to look
+    // through the whole path for a scheme
+    if (request.url.startsWith("/"))
     {
       request.url = "http://" + request.headers.get("host") + request.url;
     }
@@ -0,0 +1,134 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.libadblockplus;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+
+/**
+ * Disposes all native objects created by the current thread while the scope
+ * is open as soon as it is closed, instead of waiting for the garbage
+ * collector. Objects must not be used after their scope has been closed,
+ * objects that have to outlive it, e.g. because they are stored or handed to
+ * another thread, must be taken out with {@link #keep(Disposable)}.
+ * <p>
+ * Scopes can be nested and have to be closed on the thread that opened them,
+ * in reverse order:
+ *
+ * <pre>
+ * final DisposableScope scope = DisposableScope.open();
+ * try
+ * {
+ *   ...
+ * }
+ * finally
+ * {
+ *   scope.close();
+ * }
+ * </pre>
+ */
+public final class DisposableScope implements Closeable
+{
+  private static final ThreadLocal<DisposableScope> current = new ThreadLocal<DisposableScope>();
+
+  private final DisposableScope parent;
+  private final ArrayList<Disposer> disposers = new ArrayList<Disposer>();
+  private boolean closed = false;
+
+  private DisposableScope(final DisposableScope parent)
+  {
+    this.parent = parent;
+  }
+
+  /**
+   * Opens a new scope for the current thread.
+   */
+  public static DisposableScope open()
+  {
+    final DisposableScope scope = new DisposableScope(current.get());
+    current.set(scope);
+    return scope;
+  }
+
+  /**
+   * Adds a newly created native object to the innermost open scope of the
+   * current thread, if any.
+   */
+  static void register(final Disposer disposer)
+  {
+    final DisposableScope scope = current.get();
+    if (scope != null)
+    {
+      scope.disposers.add(disposer);
+    }
+  }
+
+  /**
+   * Takes a native object out of all open scopes of the current thread, so
+   * that it is not disposed when they are closed. It is then released by
+   * {@link Disposable#dispose()} or the garbage collector, as without a
+   * scope.
+   *
+   * @return the object
+   */
+  public static <T extends Disposable> T keep(final T object)
+  {
+    for (DisposableScope scope = current.get(); scope != null; scope = scope.parent)
+    {
+      for (int i = scope.disposers.size() - 1; i >= 0; i--)
+      {
+        if (scope.disposers.get(i).get() == object)
+        {
+          scope.disposers.remove(i);
+          return object;
+        }
+      }
+    }
+    return object;
+  }
+
+  /**
+   * @return number of native objects created within this scope
+   */
+  public int size()
+  {
+    return this.disposers.size();
+  }
+
+  @Override
+  public void close()
+  {
+    if (this.closed)
+    {
+      return;
+    }
+    this.closed = true;
+
+    if (current.get() != this)
+    {
+      throw new IllegalStateException("Scope closed out of order or on a different thread");
+    }
+    current.set(this.parent);
+
+    for (int i = this.disposers.size() - 1; i >= 0; i--)
+    {
+      this.disposers.get(i).dispose();
+    }
+    this.disposers.clear();
+  }
+}
@@ -19,15 +19,52 @@ package org.adblockplus.libadblockplus;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class Disposer extends WeakReference<Disposable>
 {
   static final ReferenceQueue<Disposable> referenceQueue = new ReferenceQueue<Disposable>();
-  private static final HashSet<Disposer> disposerSet = new HashSet<Disposer>();
+
+  /**
+   * Number of lock stripes of the registry, registrations from different
+   * threads rarely contend.
+   */
+  private static final int CONCURRENCY_LEVEL = 16;
+
+  /**
+   * Maximum number of collected objects released in one go by the cleaner.
+   */
+  private static final int CLEANUP_BATCH_SIZE = 64;
+
+  private static final Set<Disposer> disposerSet = Collections.newSetFromMap(
+      new ConcurrentHashMap<Disposer, Boolean>(256, 0.75f, CONCURRENCY_LEVEL));
+  private static final ConcurrentMap<Class<?>, AtomicInteger> liveCounts =
+      new ConcurrentHashMap<Class<?>, AtomicInteger>(16, 0.75f, CONCURRENCY_LEVEL);
+
+  private static final AtomicLong cleanedCount = new AtomicLong();
+  private static final AtomicLong totalCleanupLag = new AtomicLong();
+  private static volatile int lastCleanupBatchSize = 0;
+  private static volatile long lastCleanupTime = 0;
+  private static volatile long lastCleanupLag = 0;
+
   private final Disposable disposable;
+  private final AtomicInteger liveCount;
   private volatile boolean disposed = false;
 
+  /**
+   * When the cleaner took this reference off the queue, only used by the
+   * cleaner thread.
+   */
+  private long dequeueTime;
+
   static
   {
     final Thread thread = new Thread(new Cleaner());
@@ -40,36 +77,132 @@ public final class Disposer extends WeakReference<Disposable>
   {
     super(referent, referenceQueue);
     this.disposable = disposable;
+    this.liveCount = getLiveCounter(referent.getClass());
+    this.liveCount.incrementAndGet();
+
+    disposerSet.add(this);
+    DisposableScope.register(this);
+  }
+
+  public void dispose()
+  {
+    release();
+  }
+
+  /**
+   * @return true if the native object was released by this call, false if it
+   *         had been released before
+   */
+  private synchronized boolean release()
+  {
+    if (this.disposed)
+      return false;
 
-    synchronized (disposerSet)
+    try
     {
-      disposerSet.add(this);
+      this.disposable.dispose();
     }
+    catch (final Throwable t)
+    {
+      // catch to set state to 'disposed' on all circumstances
+    }
+
+    this.disposed = true;
+    this.liveCount.decrementAndGet();
+    disposerSet.remove(this);
+    return true;
   }
 
-  public synchronized void dispose()
+  private static AtomicInteger getLiveCounter(final Class<?> type)
   {
-    if (!this.disposed)
-    {
-      try
-      {
-        this.disposable.dispose();
-      }
-      catch (final Throwable t)
-      {
-        // catch to set state to 'disposed' on all circumstances
-      }
+    final AtomicInteger counter = liveCounts.get(type);
+    if (counter != null)
+      return counter;
+    final AtomicInteger newCounter = new AtomicInteger();
+    final AtomicInteger existing = liveCounts.putIfAbsent(type, newCounter);
+    return existing != null ? existing : newCounter;
+  }
 
-      this.disposed = true;
-      synchronized (disposerSet)
-      {
-        disposerSet.remove(this);
-      }
+  /**
+   * @return number of native objects which have not been released yet
+   */
+  public static int getLiveCount()
+  {
+    return disposerSet.size();
+  }
+
+  /**
+   * @return number of native objects which have not been released yet, by
+   *         simple name of the wrapping Java class
+   */
+  public static Map<String, Integer> getLiveCountsByType()
+  {
+    final Map<String, Integer> counts = new HashMap<String, Integer>();
+    for (final Map.Entry<Class<?>, AtomicInteger> entry : liveCounts.entrySet())
+    {
+      final String name = entry.getKey().getSimpleName();
+      final Integer count = counts.get(name);
+      counts.put(name, Integer.valueOf(entry.getValue().get() + (count != null ? count.intValue() : 0)));
     }
+    return counts;
+  }
+
+  /**
+   * @return number of native objects released by the cleaner after their
+   *         Java wrappers had been garbage collected, not counting those
+   *         disposed explicitly before
+   */
+  public static long getCleanedCount()
+  {
+    return cleanedCount.get();
+  }
+
+  /**
+   * @return number of native objects released by the most recent cleanup
+   *         batch
+   */
+  public static int getLastCleanupBatchSize()
+  {
+    return lastCleanupBatchSize;
+  }
+
+  /**
+   * @return milliseconds spent releasing the most recent cleanup batch
+   */
+  public static long getLastCleanupTime()
+  {
+    return lastCleanupTime;
+  }
+
+  /**
+   * @return longest time in milliseconds a native object released by the most
+   *         recent cleanup batch waited after its wrapper had been queued
+   *         for cleanup
+   */
+  public static long getLastCleanupLag()
+  {
+    return lastCleanupLag;
+  }
+
+  /**
+   * @return average time in milliseconds from a wrapper being queued for
+   *         cleanup to its native object being released
+   */
+  public static long getAverageCleanupLag()
+  {
+    final long count = cleanedCount.get();
+    return count > 0 ? totalCleanupLag.get() / count : 0;
   }
 
+  /**
+   * Releases collected objects. The reference queue is drained before every
+   * batch and each reference is stamped when it is taken off the queue, so
+   * the measured lag is accurate to about one batch.
+   */
   private static final class Cleaner implements Runnable
   {
+    private final ArrayDeque<Disposer> pending = new ArrayDeque<Disposer>();
+
     public Cleaner()
     {
       //
@@ -82,7 +215,35 @@ public final class Disposer extends WeakReference<Disposable>
       {
         try
         {
-          ((Disposer) Disposer.referenceQueue.remove()).dispose();
+          // Block for the first collected object, then take whatever else
+          // has been queued in the meantime
+          if (pending.isEmpty())
+            take((Disposer) Disposer.referenceQueue.remove());
+          Disposer queued;
+          while ((queued = (Disposer) Disposer.referenceQueue.poll()) != null)
+            take(queued);
+
+          final long start = System.currentTimeMillis();
+          int count = 0;
+          long maxLag = 0;
+          for (int i = 0; i < CLEANUP_BATCH_SIZE && !pending.isEmpty(); i++)
+          {
+            final Disposer disposer = pending.poll();
+            if (disposer.release())
+            {
+              final long lag = System.currentTimeMillis() - disposer.dequeueTime;
+              totalCleanupLag.addAndGet(lag);
+              maxLag = Math.max(maxLag, lag);
+              count++;
+            }
+          }
+          if (count > 0)
+          {
+            cleanedCount.addAndGet(count);
+            lastCleanupBatchSize = count;
+            lastCleanupTime = System.currentTimeMillis() - start;
+            lastCleanupLag = maxLag;
+          }
         }
         catch (final Throwable t)
         {
@@ -90,5 +251,11 @@ public final class Disposer extends WeakReference<Disposable>
         }
       }
     }
+
+    private void take(final Disposer disposer)
+    {
+      disposer.dequeueTime = System.currentTimeMillis();
+      pending.add(disposer);
+    }
   }
 }
@@ -33,7 +33,7 @@ public final class FilterEngine implements Disposable
   public static enum ContentType
   {
     OTHER, SCRIPT, IMAGE, STYLESHEET, OBJECT, SUBDOCUMENT, DOCUMENT, XMLHTTPREQUEST,
-    OBJECT_SUBREQUEST, FONT, MEDIA
+    OBJECT_SUBREQUEST, FONT, MEDIA, ELEMHIDE
   }
 
   public FilterEngine(final JsEngine jsEngine)
@@ -57,6 +57,17 @@ public final class FilterEngine implements Disposable
     return getListedFilters(this.ptr);
   }
 
+  /**
+   * Passes the text and type of all listed filters to the visitor, without
+   * creating a {@link Filter} object for each of them.
+   *
+   * @return number of visited filters
+   */
+  public int visitListedFilters(final FilterVisitor visitor)
+  {
+    return visitListedFilters(this.ptr, visitor);
+  }
+
   public Subscription getSubscription(final String url)
   {
     return getSubscription(this.ptr, url);
@@ -169,6 +180,8 @@ public final class FilterEngine implements Disposable
 
   private final static native List<Filter> getListedFilters(long ptr);
 
+  private final static native int visitListedFilters(long ptr, FilterVisitor visitor);
+
   private final static native Subscription getSubscription(long ptr, String url);
 
   private final static native List<Subscription> getListedSubscriptions(long ptr);
@@ -0,0 +1,34 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-2015 Eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.libadblockplus;
+
+/**
+ * Receives listed filters one by one, see
+ * {@link FilterEngine#visitListedFilters(FilterVisitor)}.
+ */
+public interface FilterVisitor
+{
+  /**
+   * @param text
+   *          Filter text
+   * @param type
+   *          Filter type
+   * @return {@code false} to stop the enumeration
+   */
+  boolean visitFilter(String text, Filter.Type type);
+}
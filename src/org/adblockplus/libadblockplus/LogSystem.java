@@ -41,6 +41,24 @@ public abstract class LogSystem implements Disposable
 
   public abstract void logCallback(LogLevel level, String message, String source);
 
+  /**
+   * Sets the minimum level of messages passed to
+   * {@link #logCallback(LogLevel, String, String)}, messages below it are
+   * dropped in native code. All messages are passed by default.
+   */
+  public void setMinLogLevel(final LogLevel level)
+  {
+    setMinLogLevel(this.ptr, level.ordinal());
+  }
+
+  /**
+   * @return number of messages dropped because of the minimum log level
+   */
+  public long getSuppressedCount()
+  {
+    return getSuppressedCount(this.ptr);
+  }
+
   @Override
   public void dispose()
   {
@@ -68,4 +86,8 @@ public abstract class LogSystem implements Disposable
   private final static native long ctor(Object callbackObject);
 
   private final static native void dtor(long ptr);
+
+  private final static native void setMinLogLevel(long ptr, int level);
+
+  private final static native long getSuppressedCount(long ptr);
 }
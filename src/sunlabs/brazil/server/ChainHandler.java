@@ -26,6 +26,10 @@
  *
  * Version Histories:
  *
+ * unversioned
+ *   skip url matching if the pattern matches everything, count invocations
+ *   and time spent per handler
+ *
  * 2.5 06/11/13-15:06:09 (suhler)
  *   move MatchString to package "util" from "handler"
  *
@@ -147,6 +151,7 @@ import java.io.IOException;
 import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLongArray;
 import sunlabs.brazil.util.MatchString;
 
 /**
@@ -232,6 +237,29 @@ public class ChainHandler
      */
     public boolean exitOnError = false;
 
+    /**
+     * <code>true</code> if <code>isMine</code> matches every URL, so that
+     * matching can be skipped.
+     */
+    private boolean matchesAll;
+
+    /**
+     * Log messages for invoking each handler, built once at init time.
+     */
+    private String[] invokeMessages;
+
+    /**
+     * Number of times each handler was invoked, indexed like
+     * <code>handlers</code>.
+     */
+    private AtomicLongArray invocations;
+
+    /**
+     * Total time spent in each handler in nanoseconds, indexed like
+     * <code>handlers</code>.
+     */
+    private AtomicLongArray invocationTimes;
+
     /**
      * Initializes this <code>ChainHandler</code> by initializing all the
      * "wrapped" handlers in the list of handlers.  If a wrapped handler
@@ -254,6 +282,7 @@ public class ChainHandler
     {
 	this.prefix = prefix;
 	isMine = new MatchString(prefix, server.props);
+	matchesAll = isMine.matchesAll();
 
 	Properties props = server.props;
 
@@ -292,6 +321,13 @@ public class ChainHandler
 	this.names = new String[nameVec.size()];
 	nameVec.copyInto(this.names);
 
+	invokeMessages = new String[this.names.length];
+	for (int i = 0; i < this.names.length; i++) {
+	    invokeMessages[i] = "invoking handler: " + this.names[i];
+	}
+	invocations = new AtomicLongArray(this.handlers.length);
+	invocationTimes = new AtomicLongArray(this.handlers.length);
+
 	return true;
     }
 
@@ -391,14 +427,21 @@ public class ChainHandler
      */
     public boolean
     respond(Request request) throws IOException {
-	if (!isMine.match(request.url)) {
+	if (!matchesAll && !isMine.match(request.url)) {
             return false;
 	}
 	for (int i = 0; i < handlers.length; i++) {
-	    request.log(Server.LOG_DIAGNOSTIC, prefix,
-		    "invoking handler: " + names[i]);
+	    request.log(Server.LOG_DIAGNOSTIC, prefix, invokeMessages[i]);
 
-	    if (handlers[i].respond(request)) {
+	    long start = System.nanoTime();
+	    boolean handled;
+	    try {
+		handled = handlers[i].respond(request);
+	    } finally {
+		invocations.incrementAndGet(i);
+		invocationTimes.addAndGet(i, System.nanoTime() - start);
+	    }
+	    if (handled) {
 	        if (report != null) {
 	            request.props.put(report, names[i]);
 		}
@@ -407,4 +450,33 @@ public class ChainHandler
 	}
 	return false;
     }
+
+    /**
+     * Returns how often a handler has been invoked.
+     *
+     * @param	index
+     *		Index of the handler in <code>handlers</code>.
+     *
+     * @return	The number of invocations.
+     */
+    public long
+    getInvocationCount(int index)
+    {
+	return invocations.get(index);
+    }
+
+    /**
+     * Returns the total time a handler has spent responding, including
+     * requests it passed on.
+     *
+     * @param	index
+     *		Index of the handler in <code>handlers</code>.
+     *
+     * @return	The time in nanoseconds.
+     */
+    public long
+    getInvocationTime(int index)
+    {
+	return invocationTimes.get(index);
+    }
 }
@@ -26,6 +26,12 @@
  *
  * Version Histories:
  *
+ * unversioned
+ *   adaptive keep-alive, connection statistics
+ *
+ * unversioned
+ *   look ahead at pipelined requests already received from the client
+ *
  * 2.5 06/04/25-14:27:23 (suhler)
  *   better error diagnostics
  *
@@ -116,8 +122,13 @@
 package sunlabs.brazil.server;
 
 import java.net.Socket;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.util.StringTokenizer;
+
+import sunlabs.brazil.util.http.HttpInputStream;
+import sunlabs.brazil.util.http.MimeHeaders;
 
 /**
  * Internal "helper" class to manage http connections.
@@ -147,6 +158,24 @@ class Connection implements Runnable
      */
     Request request;
 
+    /**
+     * The most bytes of already received input examined for pipelined
+     * requests.
+     */
+    static final int LOOKAHEAD_LIMIT = 16384;
+
+    /**
+     * The number of queued requests behind the current one that have
+     * already been passed to the server's lookahead.
+     */
+    int announced;
+
+    /**
+     * The total time in milliseconds this connection spent waiting for
+     * requests.
+     */
+    long idleMillis;
+
     /**
      * Constructs a new Connection and starts it running.
      */
@@ -166,20 +195,44 @@ class Connection implements Runnable
     public void
     run()
     {
+	boolean idle = false;
+	server.connectionOpened();
 	try {
 	    sock.setSoTimeout(server.timeout);
 
 	    while (request.shouldKeepAlive()) {
-		if (request.getRequest() == false) {
+		if (server.adaptiveKeepAlive) {
+		    sock.setSoTimeout(server.getIdleTimeout());
+		}
+		long start = System.currentTimeMillis();
+		idle = true;
+		server.connectionIdle(true);
+		boolean ok;
+		try {
+		    ok = request.getRequest();
+		} finally {
+		    server.connectionIdle(false);
+		}
+		idle = false;
+		if (ok == false) {
 		    break;
 		}
+		idleMillis += System.currentTimeMillis() - start;
+		if (server.adaptiveKeepAlive) {
+		    sock.setSoTimeout(server.timeout);
+		    adjustBudget();
+		}
 		server.requestCount++;
+		lookahead();
 		if (server.handler.respond(request) == false) {
 		    request.sendError(404, null, request.url);
 		}
 		request.out.flush();
 		server.log(Server.LOG_LOG, null, "request done");
 	    }
+	    if (request.keepAlive && request.requestsLeft <= 0) {
+		server.countBudgetExhausted();
+	    }
 	} catch (InterruptedIOException e) {
 	    /*
 	     * A read timed out, or (rarely) this thread was interrupted.
@@ -205,6 +258,9 @@ class Connection implements Runnable
 
 	    String msg = e.getMessage();
 	    if ((msg == null) || (msg.indexOf("terrupted") < 0)) { 
+		if (idle) {
+		    server.countIdleTimeout();
+		}
 		request.sendError(408, msg, null);
 	    }
 	} catch (IOException e) {
@@ -227,6 +283,7 @@ class Connection implements Runnable
 	    }
 	    request.sendError(500, e.toString(), "unexpected error");
 	} finally {
+	    server.connectionClosed();
 	    server.log(Server.LOG_INFORMATIONAL, null, "socket close");
 	    try {
 	    	request.out.flush();
@@ -236,4 +293,170 @@ class Connection implements Runnable
 	    } catch (IOException e) {}
 	}
     }
+
+    /**
+     * Gives a busy connection more requests once it has used up its budget,
+     * before the response tells the client whether the socket stays open.
+     */
+    void
+    adjustBudget()
+    {
+	if (request.requestsLeft > 0 || request.keepAlive == false) {
+	    return;
+	}
+	int served = request.getReuseCount();
+	int more = Math.min(server.maxRequests,
+		server.maxRequestsLimit - served);
+	if (more > 0 && idleMillis / served < server.busyGap) {
+	    request.extendBudget(more);
+	    server.countBudgetExtension();
+	}
+    }
+
+    /**
+     * Looks at the input that has already arrived behind the current
+     * request without consuming it.  Every complete request found there is
+     * passed to the server's lookahead (once), and the number of them is
+     * recorded as the pipeline depth.  Nothing is read that has not
+     * arrived yet, so this never blocks.
+     */
+    void
+    lookahead()
+	throws IOException
+    {
+	if (announced > 0) {
+	    announced--;
+	}
+
+	int depth = 0;
+	HttpInputStream in = request.in;
+	int available = in.available();
+	if (available > 0 && mayLookAhead()) {
+	    byte[] buf = new byte[Math.min(available, LOOKAHEAD_LIMIT)];
+	    int count = 0;
+	    in.mark(buf.length);
+	    try {
+		while (count < buf.length && in.available() > 0) {
+		    int n = in.read(buf, count, buf.length - count);
+		    if (n < 0) {
+			break;
+		    }
+		    count += n;
+		}
+	    } finally {
+		in.reset();
+	    }
+	    depth = parseQueued(buf, count);
+	}
+	server.countPipelineDepth(depth);
+    }
+
+    /**
+     * Whatever follows a tunnel, a protocol upgrade or a request body we
+     * don't read ourselves is not a request, and nothing follows the last
+     * request on a connection.
+     */
+    boolean
+    mayLookAhead()
+    {
+	return request.shouldKeepAlive()
+		&& !"CONNECT".equalsIgnoreCase(request.method)
+		&& request.headers.get("Transfer-Encoding") == null
+		&& request.headers.get("Upgrade") == null;
+    }
+
+    /**
+     * Parses the complete request heads found in the buffer.
+     *
+     * @return	The number of complete requests.
+     */
+    int
+    parseQueued(byte[] buf, int count)
+	throws IOException
+    {
+	int depth = 0;
+	int pos = 0;
+	while (pos < count) {
+	    while (pos < count && (buf[pos] == '\r' || buf[pos] == '\n')) {
+		pos++;
+	    }
+	    int end = headEnd(buf, pos, count);
+	    if (end < 0) {
+		break;
+	    }
+
+	    HttpInputStream hin = new HttpInputStream(
+		    new ByteArrayInputStream(buf, pos, end - pos));
+	    StringTokenizer st =
+		    new StringTokenizer(hin.readLine(MimeHeaders.MAX_LINE));
+	    if (st.countTokens() != 3) {
+		break;
+	    }
+	    String method = st.nextToken();
+	    String url = st.nextToken();
+	    MimeHeaders headers = new MimeHeaders(hin);
+	    depth++;
+
+	    if (depth > announced && server.lookahead != null) {
+		String query = "";
+		int index = url.indexOf('?');
+		if (index >= 0) {
+		    query = url.substring(index + 1);
+		    url = url.substring(0, index);
+		}
+		try {
+		    server.lookahead.queued(request, method, url, query, headers);
+		} catch (RuntimeException e) {
+		    server.log(Server.LOG_WARNING, null,
+			    "lookahead failed: " + e);
+		}
+	    }
+
+	    if ("CONNECT".equalsIgnoreCase(method)
+		    || headers.get("Transfer-Encoding") != null
+		    || headers.get("Upgrade") != null) {
+		break;
+	    }
+	    pos = end;
+	    String length = headers.get("Content-Length");
+	    if (length != null) {
+		int len;
+		try {
+		    len = Integer.parseInt(length.trim());
+		} catch (NumberFormatException e) {
+		    break;
+		}
+		if (len < 0 || len > count - pos) {
+		    break;
+		}
+		pos += len;
+	    }
+	}
+	if (depth > announced) {
+	    announced = depth;
+	}
+	return depth;
+    }
+
+    /**
+     * Finds the blank line terminating a request head.
+     *
+     * @return	The index just past the blank line, or -1 if the head is
+     *		not complete.
+     */
+    static int
+    headEnd(byte[] buf, int pos, int count)
+    {
+	for (int i = pos; i < count; i++) {
+	    if (buf[i] == '\n') {
+		if (i + 1 < count && buf[i + 1] == '\n') {
+		    return i + 2;
+		}
+		if (i + 2 < count && buf[i + 1] == '\r' && buf[i + 2] == '\n') {
+		    return i + 3;
+		}
+	    }
+	}
+	return -1;
+    }
 }
@@ -26,6 +26,21 @@
  *
  * Version Histories:
  *
+ * unversioned
+ *   resetProps() also removes lists handlers added after serverProps
+ *
+ * unversioned
+ *   don't build the request log message unless it is logged
+ *
+ * unversioned
+ *   the request budget of a connection may be extended
+ *
+ * unversioned
+ *   serverProps wraps the server's read-only props snapshot, the props list
+ *   is created once per connection and reset between requests
+ *   response heads are written with a single write, bytesWritten includes
+ *   the headers
+ *
  * 2.11 07/03/07-09:15:59 (suhler)
  *   added log messages for post failures
  *
@@ -484,13 +499,19 @@ public class Request
 
     /**
      * A <code>PropertiesList</code> object that wraps
-     * <code>server.props</code>.  When this <code>request</code> is
-     * created, a new <code>PropertiesList</code> wrapping 
-     * <code>server.props</code> is created and added to a list consisting
+     * <code>server.propsSnapshot</code>, the read-only copy of
+     * <code>server.props</code>.  It is created together with the first
+     * request on a connection and added to a list consisting
      * only of <code>props</code> and <code>serverProps</code>.
      */
     public PropertiesList serverProps;
 
+    /**
+     * The per-request properties in front of <code>serverProps</code>,
+     * reused for every request on this connection.
+     */
+    private PropertiesList overlay;
+
     /**
      * The HTTP response to the client is written to this stream.  Normally
      * the convenience methods, such as <code>sendResponse</code>, are used
@@ -529,6 +550,12 @@ public class Request
      */
     protected int requestsLeft;
 
+    /*
+     * How many requests this <code>Request</code> was allowed to handle in
+     * total, including any extensions.
+     */
+    int requestBudget;
+
 
     //-----------------------------------------------------------------------
 
@@ -696,6 +723,7 @@ public class Request
 	}
 	
 	requestsLeft = server.maxRequests;
+	requestBudget = requestsLeft;
 	keepAlive = true;
 
 	headers = new MimeHeaders();
@@ -746,7 +774,7 @@ public class Request
     getRequest()
 	throws IOException
     {
-	if (server.props.get("debugProps") != null) {
+	if (PropertiesList.debug) {
 	    if (props != null) {
 		props.dump(false, "at beginning of getRequest");
 	    }
@@ -800,7 +828,9 @@ public class Request
 	    throw new IOException("Too many leading blanks in HTTP request");
 	}
 
-	log(Server.LOG_LOG, "Request " + requestsLeft + " " + line);
+	if (server.isLoggable(Server.LOG_LOG)) {
+	    log(Server.LOG_LOG, "Request " + requestsLeft + " " + line);
+	}
 
 	try {
 	    StringTokenizer st = new StringTokenizer(line);
@@ -888,9 +918,7 @@ public class Request
 	/*
          * Delay initialization until we know we need these things
          */
-	serverProps = new PropertiesList(server.props);
-	props = new PropertiesList();
-	props.addBefore(serverProps);
+	resetProps();
 
 	/*
 	 * Keep track of the original url.  This is backwards (for
@@ -902,6 +930,41 @@ public class Request
 	return true;
     }
 
+    /**
+     * Sets up {@link #props} for the next request.  The list wrapping the
+     * server configuration and the per-request overlay in front of it are
+     * only created once per connection, later requests get the same overlay
+     * back, emptied and with anything handlers added to the list removed.
+     */
+    private void
+    resetProps()
+    {
+	if (serverProps == null
+		|| serverProps.getWrapped() != server.propsSnapshot) {
+	    serverProps = new PropertiesList(server.propsSnapshot);
+	    overlay = new PropertiesList();
+	    overlay.addBefore(serverProps);
+	} else {
+	    PropertiesList p = serverProps.getPrior();
+	    while (p != null) {
+		PropertiesList prior = p.getPrior();
+		if (p != overlay) {
+		    p.remove();
+		}
+		p = prior;
+	    }
+	    while (serverProps.getNext() != null) {
+		serverProps.getNext().remove();
+	    }
+	    if (overlay.getNext() != serverProps) {
+		overlay.remove();
+		overlay.addBefore(serverProps);
+	    }
+	    overlay.clear();
+	}
+	props = overlay;
+    }
+
     boolean
     shouldKeepAlive()
     {
@@ -1103,7 +1166,20 @@ public class Request
      */
 
     public int getReuseCount() {
-	return server.maxRequests - requestsLeft;
+	return requestBudget - requestsLeft;
+    }
+
+    /**
+     * Allows more requests on this socket.
+     *
+     * @param	count
+     *		The number of additional requests.
+     */
+    void
+    extendBudget(int count)
+    {
+	requestsLeft += count;
+	requestBudget += count;
     }
 
     /**
@@ -1642,10 +1718,9 @@ public class Request
 	sendHeaders(Request request)
 	    throws IOException
 	{
-	    writeBytes(request.protocol + " " + request.statusCode + " " +
-		    request.statusPhrase + "\r\n");
-	    request.responseHeaders.print(this.out);
-	    writeBytes("\r\n");
+	    bytesWritten += request.responseHeaders.writeHead(this.out,
+		    request.protocol, Integer.toString(request.statusCode),
+		    request.statusPhrase);
 	}
     }
 
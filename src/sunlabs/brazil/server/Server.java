@@ -26,6 +26,24 @@
  *
  * Version Histories:
  *
+ * unversioned
+ *   declare serialVersionUID of PropsSnapshot
+ *
+ * unversioned
+ *   add isLoggable() so that callers can skip building log messages
+ *
+ * unversioned
+ *   adaptive keep-alive: extend the request budget of busy connections,
+ *   shorten idle timeouts under load, connection statistics
+ *
+ * unversioned
+ *   add lookahead notification and depth statistics for pipelined
+ *   requests
+ *
+ * unversioned
+ *   take a flattened, read-only snapshot of props in init() for
+ *   Request.serverProps
+ *
  * 2.4 05/07/12-12:46:41 (suhler)
  *   better failure diags
  *
@@ -241,13 +259,21 @@
 package sunlabs.brazil.server;
 
 import sunlabs.brazil.properties.PropertiesList;
+import sunlabs.brazil.util.http.MimeHeaders;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Yet another HTTP/1.1 server.
@@ -300,6 +326,62 @@ public class Server
     
     public Properties props = null;
 
+    /**
+     * Read-only, flattened copy of {@link #props} taken by {@link #init},
+     * wrapped by {@link Request#serverProps}.  Changes to <code>props</code>
+     * made afterwards are seen by requests once the server is restarted.
+     */
+    public Dictionary propsSnapshot = null;
+
+    /**
+     * The table behind {@link #propsSnapshot}.  It is filled once and
+     * never changes afterwards, so that lookups do not need to lock.
+     */
+    static final class PropsSnapshot extends Hashtable {
+	private static final long serialVersionUID = 1L;
+
+	private final HashMap values = new HashMap();
+	private final boolean frozen;
+
+	PropsSnapshot(Properties props) {
+	    Enumeration names = props.propertyNames();
+	    while (names.hasMoreElements()) {
+		Object name = names.nextElement();
+		if (name instanceof String) {
+		    String value = props.getProperty((String) name);
+		    if (value != null) {
+			values.put(name, value);
+			super.put(name, value);
+		    }
+		}
+	    }
+	    frozen = true;
+	}
+
+	public Object get(Object key) {
+	    return values.get(key);
+	}
+
+	public boolean containsKey(Object key) {
+	    return values.containsKey(key);
+	}
+
+	public synchronized Object put(Object key, Object value) {
+	    if (frozen) {
+		throw new UnsupportedOperationException("read-only");
+	    }
+	    return super.put(key, value);
+	}
+
+	public synchronized Object remove(Object key) {
+	    throw new UnsupportedOperationException("read-only");
+	}
+
+	public synchronized void clear() {
+	    throw new UnsupportedOperationException("read-only");
+	}
+    }
+
     /**
      * The hostname that this Server should use to identify itself in
      * an HTTP Redirect.  If <code>null</code>, the hostname is derived
@@ -378,6 +460,61 @@ public class Server
      */
     public int bufsize = 8192;
     
+    /**
+     * If <code>true</code>, <code>maxRequests</code> and
+     * <code>timeout</code> are adapted to the load.  A connection that has
+     * used up its <code>maxRequests</code> while requests kept arriving
+     * less than <code>busyGap</code> milliseconds apart on average gets
+     * another <code>maxRequests</code>, up to <code>maxRequestsLimit</code>
+     * in total.  While more than <code>busyConnections</code> connections
+     * are open, the time a connection may wait for its next request is
+     * reduced in proportion, down to <code>minIdleTimeout</code>.
+     * <p>
+     * The default value is <code>false</code>.
+     */
+    public boolean adaptiveKeepAlive = false;
+
+    /**
+     * Most requests allowed on a single busy socket if
+     * <code>adaptiveKeepAlive</code> is set.
+     * <p>
+     * The default value is <code>500</code>.
+     */
+    public int maxRequestsLimit = 500;
+
+    /**
+     * Average milliseconds between requests below which a socket counts as
+     * busy if <code>adaptiveKeepAlive</code> is set.
+     * <p>
+     * The default value is <code>1000</code>.
+     */
+    public int busyGap = 1000;
+
+    /**
+     * Number of open connections above which idle sockets are closed
+     * sooner if <code>adaptiveKeepAlive</code> is set.
+     * <p>
+     * The default value is <code>32</code>.
+     */
+    public int busyConnections = 32;
+
+    /**
+     * Shortest time in milliseconds an idle socket is kept open if
+     * <code>adaptiveKeepAlive</code> is set.
+     * <p>
+     * The default value is <code>5000</code>.
+     */
+    public int minIdleTimeout = 5000;
+
+    /*
+     * Connection statistics, see the corresponding get methods.
+     */
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger idleConnections = new AtomicInteger();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+    private final AtomicLong budgetExtensions = new AtomicLong();
+    private final AtomicLong idleTimeouts = new AtomicLong();
+
     /**
      * Count of accepted connections so far.
      */
@@ -393,6 +530,51 @@ public class Server
      */
     public int errorCount = 0;
 
+    /**
+     * Receives requests that a client has pipelined behind the request
+     * currently being handled on the same connection, as soon as their
+     * headers have arrived.  The queued requests are only looked at, they
+     * are handled normally (and in order) once their turn comes, so the
+     * lookahead must not have any effect other than preparing for them.
+     */
+    public interface Lookahead
+    {
+	/**
+	 * Called for each complete queued request, at most once per request.
+	 *
+	 * @param	request
+	 *		The request currently being handled.
+	 * @param	method
+	 *		The method of the queued request.
+	 * @param	url
+	 *		The url of the queued request, without query string.
+	 * @param	query
+	 *		The query string of the queued request, may be empty.
+	 * @param	headers
+	 *		The headers of the queued request.
+	 */
+	void queued(Request request, String method, String url, String query,
+		MimeHeaders headers);
+    }
+
+    /**
+     * If set, notified about pipelined requests, see {@link Lookahead}.
+     */
+    public Lookahead lookahead;
+
+    /**
+     * Largest pipeline depth counted separately by
+     * {@link #getPipelineDepthCount}.
+     */
+    public static final int MAX_PIPELINE_DEPTH = 8;
+
+    /*
+     * How often each number of queued requests was seen behind a request,
+     * deeper pipelines are counted in the last slot.
+     */
+    private final AtomicLongArray pipelineDepths =
+	    new AtomicLongArray(MAX_PIPELINE_DEPTH + 1);
+
     /**
      * The diagnostic level. 0->least, 5->most
      */
@@ -488,6 +670,7 @@ public class Server
 	    Thread.currentThread().setName("server");
 	}
 
+	propsSnapshot = new PropsSnapshot(props);
 	handler = ChainHandler.initHandler(this, prefix, handlerName);
 
 	if (handler == null) {
@@ -615,12 +798,157 @@ public class Server
 	log(LOG_WARNING, null, "server stopped");
     }
 
+    /**
+     * Records the number of complete requests found queued behind a request
+     * when it was read.
+     */
+    void
+    countPipelineDepth(int depth)
+    {
+	pipelineDepths.incrementAndGet(Math.min(depth, MAX_PIPELINE_DEPTH));
+    }
+
+    /**
+     * Returns how many requests were read while the given number of
+     * further requests were already waiting on the same connection.  Depth
+     * 0 counts requests that were not pipelined,
+     * <code>MAX_PIPELINE_DEPTH</code> includes all deeper pipelines.
+     *
+     * @param	depth
+     *		The number of queued requests.
+     *
+     * @return	The number of requests seen with that depth.
+     */
+    public long
+    getPipelineDepthCount(int depth)
+    {
+	return pipelineDepths.get(Math.min(depth, MAX_PIPELINE_DEPTH));
+    }
+
+    /**
+     * Returns how long a socket may wait for its next request, given the
+     * current number of open connections.
+     */
+    int
+    getIdleTimeout()
+    {
+	int open = openConnections.get();
+	if (!adaptiveKeepAlive || open <= busyConnections) {
+	    return timeout;
+	}
+	int scaled = (int) ((long) timeout * busyConnections / open);
+	return Math.min(timeout, Math.max(minIdleTimeout, scaled));
+    }
+
+    void
+    connectionOpened()
+    {
+	openConnections.incrementAndGet();
+    }
+
+    void
+    connectionClosed()
+    {
+	openConnections.decrementAndGet();
+    }
+
+    void
+    connectionIdle(boolean idle)
+    {
+	if (idle) {
+	    idleConnections.incrementAndGet();
+	} else {
+	    idleConnections.decrementAndGet();
+	}
+    }
+
+    void
+    countBudgetExhausted()
+    {
+	budgetExhausted.incrementAndGet();
+    }
+
+    void
+    countBudgetExtension()
+    {
+	budgetExtensions.incrementAndGet();
+    }
+
+    void
+    countIdleTimeout()
+    {
+	idleTimeouts.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of client connections currently open.
+     */
+    public int
+    getOpenConnectionCount()
+    {
+	return openConnections.get();
+    }
+
+    /**
+     * Returns the number of open client connections currently waiting for
+     * their next request.
+     */
+    public int
+    getIdleConnectionCount()
+    {
+	return idleConnections.get();
+    }
+
+    /**
+     * Returns how often a connection was closed because it had used up its
+     * request budget, forcing the client to reconnect.  Divided by
+     * <code>requestCount</code> this gives the reconnect rate.
+     */
+    public long
+    getBudgetExhaustedCount()
+    {
+	return budgetExhausted.get();
+    }
+
+    /**
+     * Returns how often a busy connection was granted more requests.
+     */
+    public long
+    getBudgetExtensionCount()
+    {
+	return budgetExtensions.get();
+    }
+
+    /**
+     * Returns how often an idle connection was closed because no further
+     * request arrived in time.
+     */
+    public long
+    getIdleTimeoutCount()
+    {
+	return idleTimeouts.get();
+    }
+
     public static final int LOG_ERROR=1;		// most severe
     public static final int LOG_WARNING=2;
     public static final int LOG_LOG=3;
     public static final int LOG_INFORMATIONAL=4;
     public static final int LOG_DIAGNOSTIC=5;	// least useful
 
+    /**
+     * Tells whether messages of the given level are logged, so that callers
+     * can avoid building messages that would be discarded.
+     *
+     * @param	level	    The level of the message.
+     *
+     * @return	<code>true</code> if the message would be logged.
+     */
+    public boolean
+    isLoggable(int level)
+    {
+	return level <= logLevel;
+    }
+
     /**
      * Logs information about the socket to <code>System.out</code>.  
      *
@@ -26,6 +26,10 @@
  *
  * Version Histories:
  *
+ * unversioned
+ *   compile glob patterns consisting of literals and "*" into prefix,
+ *   suffix and segment checks, added matchesAll()
+ *
  * 2.3 06/11/13-15:08:19 (suhler)
  *   move MatchString to package "util" from "handler"
  *
@@ -67,6 +71,7 @@ import sunlabs.brazil.util.regexp.Regexp;
 import sunlabs.brazil.util.Glob;
 import sunlabs.brazil.util.Format;
 import java.util.Properties;
+import java.util.Vector;
 
 /**
  * Utility class for handlers to determine, based on the URL,
@@ -98,6 +103,17 @@ public class MatchString {
     String glob = null;		// our glob match (if no re)
     boolean invert = false;	// should we invert the result
 
+    /*
+     * How the glob is matched, computed whenever the glob changes.
+     */
+    static final int GLOB_ALL = 0;	// "*", matches everything
+    static final int GLOB_EXACT = 1;	// no wildcards at all
+    static final int GLOB_SEGMENTS = 2;	// literals separated by "*"
+    static final int GLOB_GENERIC = 3;	// anything else, use Glob.match()
+
+    int globKind = GLOB_GENERIC;
+    String[] segments = null;	// literal parts of the glob between "*"
+
     static final String PREFIX = "prefix";
     static final String SUFFIX = "suffix";
     static final String MATCH =  "match";
@@ -142,18 +158,107 @@ public class MatchString {
         if (exp != null) {
 	    boolean ignoreCase = (props.getProperty(propsPrefix + CASE)!=null);
 	    try {
-		re = new Regexp(exp, ignoreCase);
+		re = Regexp.compile(exp, ignoreCase);
 	    } catch (Exception e) {}
 	}
 
 	if (re == null) {
-	    glob = props.getProperty(propsPrefix + GLOB,
+	    String newGlob = props.getProperty(propsPrefix + GLOB,
 		   props.getProperty(propsPrefix + PREFIX, "/") +
 		   "*" +
 		   props.getProperty(propsPrefix + SUFFIX, ""));
+	    if (!newGlob.equals(glob)) {
+		compileGlob(newGlob);
+		glob = newGlob;
+	    }
         }
     }
 
+    /**
+     * Turn the glob into something cheaper to match.  Globs made only of
+     * literals and "*" (which covers prefix and suffix) are matched by
+     * comparing their literal segments, anything else goes through
+     * <code>Glob.match</code>.
+     */
+
+    private void
+    compileGlob(String pattern) {
+	if (pattern.indexOf('?') >= 0 || pattern.indexOf('[') >= 0
+		|| pattern.indexOf('\\') >= 0) {
+	    globKind = GLOB_GENERIC;
+	    segments = null;
+	    return;
+	}
+
+	Vector parts = new Vector();
+	int start = 0;
+	int star;
+	while ((star = pattern.indexOf('*', start)) >= 0) {
+	    parts.addElement(pattern.substring(start, star));
+	    start = star + 1;
+	}
+	parts.addElement(pattern.substring(start));
+
+	String[] compiled = new String[parts.size()];
+	parts.copyInto(compiled);
+	segments = compiled;
+
+	if (compiled.length == 1) {
+	    globKind = GLOB_EXACT;
+	} else if (pattern.length() == compiled.length - 1) {
+	    globKind = GLOB_ALL;
+	} else {
+	    globKind = GLOB_SEGMENTS;
+	}
+    }
+
+    /**
+     * Match against the compiled glob: the first segment must be a prefix,
+     * the last one a suffix and the ones in between must appear in order.
+     */
+
+    private boolean
+    matchGlob(String url) {
+	switch (globKind) {
+	case GLOB_ALL:
+	    return true;
+	case GLOB_EXACT:
+	    return url.equals(segments[0]);
+	case GLOB_SEGMENTS:
+	    String first = segments[0];
+	    String last = segments[segments.length - 1];
+	    if (!url.startsWith(first)) {
+		return false;
+	    }
+	    int end = url.length() - last.length();
+	    if (end < first.length() || !url.endsWith(last)) {
+		return false;
+	    }
+	    int index = first.length();
+	    for (int i = 1; i < segments.length - 1; i++) {
+		index = url.indexOf(segments[i], index);
+		if (index < 0 || index + segments[i].length() > end) {
+		    return false;
+		}
+		index += segments[i].length();
+	    }
+	    return true;
+	default:
+	    return Glob.match(glob, url);
+	}
+    }
+
+    /**
+     * Whether every url matches, so callers may skip calling
+     * <code>match</code> altogether.  Only meaningful for properties
+     * evaluated at init time.
+     */
+
+    public boolean
+    matchesAll() {
+	return re == null && glob != null && globKind == GLOB_ALL && !invert;
+    }
+
     /**
      * See if this is our url.  Use this version for properties
      * evaluated only at init time.
@@ -164,7 +269,7 @@ public class MatchString {
 	if (re != null) {
 	    return (invert ^ (re.match(url) != null));
 	} else if (glob != null) {
-	    return invert ^ Glob.match(glob, url);
+	    return invert ^ matchGlob(url);
 	} else {
 	    throw new IllegalArgumentException("no properties provided");
 	}
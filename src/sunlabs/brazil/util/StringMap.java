@@ -26,6 +26,9 @@
  *
  * Version Histories:
  *
+ * unversioned
+ *   added moveTo() and removeAll()
+ *
  * 2.5 07/01/14-15:12:01 (suhler)
  *   add get(key, dflt)
  *
@@ -508,6 +511,64 @@ public class StringMap
 	values.setSize(0);
     }
 
+    /**
+     * Removes every occurrence of the given keys in a single pass over
+     * this <code>StringMap</code>.
+     *
+     * @param	remove
+     *		The case-insensitive keys to remove.
+     */
+    public void
+    removeAll(String[] remove)
+    {
+	int length = keys.size();
+	int kept = 0;
+	outer:
+	for (int i = 0; i < length; i++) {
+	    String key = (String) keys.elementAt(i);
+	    for (int j = 0; j < remove.length; j++) {
+		if (remove[j].equalsIgnoreCase(key)) {
+		    continue outer;
+		}
+	    }
+	    if (kept != i) {
+		keys.setElementAt(key, kept);
+		values.setElementAt(values.elementAt(i), kept);
+	    }
+	    kept++;
+	}
+	keys.setSize(kept);
+	values.setSize(kept);
+    }
+
+    /**
+     * Moves all mappings of this <code>StringMap</code> to the end of
+     * another one, leaving this one empty.  If the other map is empty,
+     * the underlying storage is handed over rather than copied.
+     *
+     * @param	other
+     *		The map to receive the mappings.
+     */
+    public void
+    moveTo(StringMap other)
+    {
+	if (other.isEmpty()) {
+	    Vector otherKeys = other.keys;
+	    Vector otherValues = other.values;
+	    other.keys = keys;
+	    other.values = values;
+	    keys = otherKeys;
+	    values = otherValues;
+	} else {
+	    int length = size();
+	    for (int i = 0; i < length; i++) {
+		other.keys.addElement(keys.elementAt(i));
+		other.values.addElement(values.elementAt(i));
+	    }
+	    clear();
+	}
+    }
+
     private int
     indexOf(String key)
     {
@@ -26,6 +26,11 @@
  *
  * Version Histories:
  *
+ * unversioned
+ *   allow constructing a request from an already parsed URL
+ *   write the request head with a single write instead of a PrintStream
+ *   remove point-to-point headers in a single pass
+ *
  * 13/04/09-12:44:12 (andrey@adblockplus.org)
  *   implemented proxying chunked request body
  *
@@ -401,7 +406,8 @@ public class HttpRequest
     public static HttpSocketPool pool = new SimpleHttpSocketPool();
 
     /**
-     * The URL used to construct this <code>HttpRequest</code>.
+     * The URL used to construct this <code>HttpRequest</code>, or
+     * <code>null</code> if it was constructed from already parsed parts.
      */
     public URL url;
 
@@ -480,6 +486,12 @@ public class HttpRequest
     String uri;
     String connectionHeader;
 
+    /*
+     * The request URL and its path, as sent directly or to a proxy.
+     */
+    String absoluteUri;
+    String file;
+
     HttpInputStream in;
     InputStream under;
     HttpInputStream cs;
@@ -534,12 +546,57 @@ public class HttpRequest
 	}
 
 	this.url = url;
+	this.absoluteUri = url.toString();
+	this.file = url.getFile();
 
 	this.host = url.getHost();
 	this.port = url.getPort();
 	if (this.port < 0) {
 	    this.port = 80;
 	}
+	init();
+    }
+
+    /**
+     * Creates a new <code>HttpRequest</code> object from a URL that has
+     * already been split up by the caller, without parsing it again.
+     * <p>
+     * The host specified by the URL is <b>not</b> contacted at this time.
+     *
+     * @param	url
+     *		A fully qualified "http:" URL.
+     *
+     * @param	host
+     *		The host part of the URL.
+     *
+     * @param	port
+     *		The port of the URL, or -1 for the default port.
+     *
+     * @param	file
+     *		The path and query of the URL, as returned by
+     *		<code>URL.getFile</code>.
+     *
+     * @throws	IllegalArgumentException
+     *		if <code>url</code> is not an "http:" URL.
+     */
+    public
+    HttpRequest(String url, String host, int port, String file)
+    {
+	if (url.regionMatches(true, 0, "http:", 0, 5) == false) {
+	    throw new IllegalArgumentException(url);
+	}
+
+	this.absoluteUri = url;
+	this.file = file;
+
+	this.host = host;
+	this.port = (port < 0) ? 80 : port;
+	init();
+    }
+
+    private void
+    init()
+    {
 	this.proxyHost = defaultProxyHost;
 	this.proxyPort = defaultProxyPort;
 
@@ -747,10 +804,10 @@ public class HttpRequest
 	}
 
 	if (proxyHost == null) {
-	    uri = url.getFile();
+	    uri = file;
 	    connectionHeader = "Connection";
 	} else {
-	    uri = url.toString();
+	    uri = absoluteUri;
 	    connectionHeader = "Proxy-Connection";
 	}
 
@@ -875,10 +932,8 @@ public class HttpRequest
             System.err.print("\r\n");
         }
 
-	PrintStream p = new PrintStream(hs.out);
-	p.print(method + " " + uri + " " + version + "\r\n");
-	requestHeaders.print(p);
-	p.print("\r\n");
+	OutputStream p = hs.out;
+	requestHeaders.writeHead(p, method, uri, version);
 
 	if (postData != null) {
 	    postData.writeTo(p);
@@ -898,7 +953,7 @@ public class HttpRequest
 			{
 				bytesLeft = getChunkSize(cs);
 				// Output chunk size
-				p.print(Integer.toHexString(bytesLeft) + "\r\n");
+				writeLine(p, Integer.toHexString(bytesLeft));
 			}
 			if (bytesLeft == 0)
 				break;
@@ -913,7 +968,7 @@ public class HttpRequest
         		p.write(buf, 0, count);
 			bytesLeft -= count;
 			if (bytesLeft == 0)
-				p.print("\r\n");
+				writeLine(p, "");
 		}
 		// Pass the trailer
 		if (bytesLeft == 0)
@@ -923,7 +978,7 @@ public class HttpRequest
 				String line = cs.readLine(LINE_LIMIT);
 				if (line == null)
 					break;
-				p.print(line + "\r\n");
+				writeLine(p, line);
 				if (line.length() == 0)
 					break;
 			}
@@ -933,6 +988,18 @@ public class HttpRequest
 	p.flush();
     }
 
+    private static void
+    writeLine(OutputStream out, String line)
+	throws IOException
+    {
+	int len = line.length();
+	for (int i = 0; i < len; i++) {
+	    out.write((byte) line.charAt(i));
+	}
+	out.write('\r');
+	out.write('\n');
+    }
+
     /*
      * Copied (with some amendmends) from UnchunkingInputStream / andrey@adblockplus.org
      */
@@ -1289,20 +1356,20 @@ public class HttpRequest
     public static void
     removePointToPointHeaders(MimeHeaders headers, boolean response)
     {
-	headers.remove("Connection");
-	headers.remove("Proxy-Connection");
-	headers.remove("Keep-Alive");
-	headers.remove("Upgrade");
-
-	if (response == false) {
-	    headers.remove("Proxy-Authorization");
-	} else {
-	    headers.remove("Proxy-Authenticate");
-	    headers.remove("Public");
-	    headers.remove("Transfer-Encoding");
-	}
+	headers.removeAll(response ? responsePointToPointHeaders
+		: requestPointToPointHeaders);
     }
 
+    private static final String[] requestPointToPointHeaders = {
+	"Connection", "Proxy-Connection", "Keep-Alive", "Upgrade",
+	"Proxy-Authorization"
+    };
+
+    private static final String[] responsePointToPointHeaders = {
+	"Connection", "Proxy-Connection", "Keep-Alive", "Upgrade",
+	"Proxy-Authenticate", "Public", "Transfer-Encoding"
+    };
+
     /**
      * Convenience method for adding request headers by looking them
      * up in a properties object.
@@ -1378,7 +1445,8 @@ public class HttpRequest
      * or "null" if none found.  Response headers must be available.
      */
 
-    Regexp encExp = new Regexp("^text/.*;[ \t]*charset=([^ \t;]*)",true);
+    static final Regexp encExp =
+	    new Regexp("^text/.*;[ \t]*charset=([^ \t;]*)",true);
     public String getEncoding() {
 	String type = getResponseHeader("content-type");
 	if (type == null) {
@@ -26,6 +26,10 @@
  *
  * Version Histories:
  *
+ * unversioned
+ *   made date formatting and parsing thread-safe, formatTime() caches the
+ *   current date for a second
+ *
  * unversioned 12/11/27-15:37:00 (Andrey Novikov)
  *   fixed StringIndexOutOfBoundsException in formatTime(long time)
  *
@@ -89,7 +93,6 @@ package sunlabs.brazil.util.http;
 
 import java.text.SimpleDateFormat;
 import java.text.ParsePosition;
-import java.util.Date;
 import java.util.Dictionary;
 import java.util.Locale;
 import java.util.SimpleTimeZone;
@@ -261,30 +264,68 @@ public class HttpUtil
     }
 
     /**
-     * The format describing an http date.
+     * The format describing an http date, used for parsing only.
+     * <code>SimpleDateFormat</code> is not thread-safe, so every thread
+     * gets its own instance.
      */
-    private static SimpleDateFormat dateFormat;
-    static {
-	dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z",
-		Locale.US);
-	dateFormat.setTimeZone(new SimpleTimeZone(0, "GMT"));
-	dateFormat.setLenient(true);
+    private static final ThreadLocal dateFormat = new ThreadLocal() {
+	protected Object initialValue() {
+	    SimpleDateFormat format = new SimpleDateFormat(
+		    "EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+	    format.setTimeZone(new SimpleTimeZone(0, "GMT"));
+	    format.setLenient(true);
+	    return format;
+	}
+    };
+
+    private static final String[] DAYS = {
+	"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"
+    };
+
+    private static final String[] MONTHS = {
+	"Jan", "Feb", "Mar", "Apr", "May", "Jun",
+	"Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+    };
+
+    /**
+     * A formatted date together with the second it was formatted for.
+     * Instances are immutable, so that they can be published through a
+     * volatile field without locking.
+     */
+    private static final class CachedDate {
+	final long second;
+	final String value;
+
+	CachedDate(long second, String value) {
+	    this.second = second;
+	    this.value = value;
+	}
     }
 
+    private static volatile CachedDate currentDate = new CachedDate(-1, null);
+
     /**
      * Returns a string containing the current time as an HTTP-formatted
-     * date.
+     * date.  The date is formatted at most once per second, every caller
+     * within the same second gets the same string.
      *
      * @return	HTTP date string representing the current time.
      */
     public static String
     formatTime()
     {
-	return formatTime(System.currentTimeMillis());
+	long second = System.currentTimeMillis() / 1000;
+	CachedDate date = currentDate;
+	if (date.second != second) {
+	    date = new CachedDate(second, formatTime(second * 1000));
+	    currentDate = date;
+	}
+	return date.value;
     }
 
     /**
      * Returns a string containing an HTTP-formatted date.
+     * This method is thread-safe and does not use any shared state.
      *
      * @param	time
      *		The date to format (current time in msec).
@@ -294,16 +335,57 @@ public class HttpUtil
     public static String
     formatTime(long time)
     {
-	String date = dateFormat.format(new Date(time));
-	int plus = date.indexOf('+');
-	if (plus > 0)
-	    date = date.substring(0, plus);
-	return date;
+	long seconds = floorDiv(time, 1000);
+	long days = floorDiv(seconds, 86400);
+	int secondOfDay = (int) (seconds - days * 86400);
+
+	/*
+	 * Convert the day number into a civil date, see
+	 * http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+	 */
+	long z = days + 719468;
+	long era = floorDiv(z, 146097);
+	int doe = (int) (z - era * 146097);
+	int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+	int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+	int mp = (5 * doy + 2) / 153;
+	int day = doy - (153 * mp + 2) / 5 + 1;
+	int month = mp < 10 ? mp + 2 : mp - 10;
+	long year = yoe + era * 400 + (month <= 1 ? 1 : 0);
+
+	StringBuffer sb = new StringBuffer(29);
+	sb.append(DAYS[(int) (days + 4 - floorDiv(days + 4, 7) * 7)]);
+	sb.append(", ");
+	append2(sb, day);
+	sb.append(' ').append(MONTHS[month]).append(' ');
+	sb.append(year);
+	sb.append(' ');
+	append2(sb, secondOfDay / 3600);
+	sb.append(':');
+	append2(sb, secondOfDay / 60 % 60);
+	sb.append(':');
+	append2(sb, secondOfDay % 60);
+	sb.append(" GMT");
+	return sb.toString();
+    }
+
+    private static void
+    append2(StringBuffer sb, int value)
+    {
+	sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    private static long
+    floorDiv(long x, long y)
+    {
+	long q = x / y;
+	return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
     }
 
     /**
      * Convert a last-modified date in "standard" format
      * into a time stamp.  This "inverses" formatTime.
+     * This method is thread-safe.
      *
      * @param		time
      *			A correctly formatted HTTP date string.
@@ -314,7 +396,8 @@ public class HttpUtil
     public static long
     parseTime(String time) {
 	try {
-	    return dateFormat.parse(time.trim(),new ParsePosition(0)).getTime();
+	    return ((SimpleDateFormat) dateFormat.get()).parse(time.trim(),
+		    new ParsePosition(0)).getTime();
 	} catch (Exception e) {
 	    return 0;
 	}
@@ -356,7 +439,7 @@ public class HttpUtil
      * part: 1=protocol, 2=host, 3=port, 4=path
      */
 
-    static Regexp urlRe = new Regexp("([^:]*)://([^:/]*)(:[0-9]+)?(.*)");
+    static final Regexp urlRe = new Regexp("([^:]*)://([^:/]*)(:[0-9]+)?(.*)");
     static String parseUrl(String url, int part) {
 	String matches[] = new String[5];
 	return (urlRe.match(url, matches) ? matches[part] : null);
@@ -26,6 +26,9 @@
  *
  * Version Histories:
  *
+ * unversioned
+ *   added writeHead() to serialize a message head into a single write
+ *
  * 2.4 05/12/08-13:03:48 (suhler)
  *   add limits on request size to prevent DOS attacks
  *
@@ -117,6 +120,16 @@ public class MimeHeaders
     public static final int MAX_LINE=1024;
     public static final int MAX_LINES=1024;
 
+    /**
+     * Largest head buffer kept around for reuse by a thread.
+     */
+    private static final int MAX_HEAD_BUFFER = 16384;
+
+    /**
+     * Per-thread buffer for serializing message heads.
+     */
+    private static final ThreadLocal headBuffer = new ThreadLocal();
+
     /**
      * Creates a new, empty <code>MimeHeaders</code> object.
      */
@@ -269,6 +282,82 @@ public class MimeHeaders
 	}
     }
 
+    /**
+     * Writes a complete message head to the given output stream: the start
+     * line made of the three given parts separated by spaces, these
+     * headers and the blank line that ends the head.  The head is encoded
+     * into a buffer reused by the calling thread and handed to the stream
+     * in a single write.  Characters are written as their low eight bits,
+     * the inverse of how {@link HttpInputStream#readLine} decodes them.
+     *
+     * @param	out
+     *		The output stream.
+     *
+     * @param	first
+     *		First part of the start line, e.g. the method or protocol.
+     *
+     * @param	second
+     *		Second part of the start line, e.g. the URI or status code.
+     *
+     * @param	third
+     *		Third part of the start line, e.g. the protocol or reason
+     *		phrase.
+     *
+     * @return	The number of bytes written.
+     *
+     * @throws	IOException
+     *		if the output stream throws an IOException.
+     */
+    public int
+    writeHead(OutputStream out, String first, String second, String third)
+	throws IOException
+    {
+	int count = size();
+	int length = first.length() + second.length() + third.length() + 6;
+	for (int i = 0; i < count; i++) {
+	    length += getKey(i).length() + String.valueOf(get(i)).length() + 4;
+	}
+
+	byte[] buf = (byte[]) headBuffer.get();
+	if (buf == null || buf.length < length) {
+	    buf = new byte[Math.max(length, 1024)];
+	    if (buf.length <= MAX_HEAD_BUFFER) {
+		headBuffer.set(buf);
+	    }
+	}
+
+	int pos = encode(buf, 0, first);
+	buf[pos++] = ' ';
+	pos = encode(buf, pos, second);
+	buf[pos++] = ' ';
+	pos = encode(buf, pos, third);
+	buf[pos++] = '\r';
+	buf[pos++] = '\n';
+	for (int i = 0; i < count; i++) {
+	    pos = encode(buf, pos, getKey(i));
+	    buf[pos++] = ':';
+	    buf[pos++] = ' ';
+	    pos = encode(buf, pos, String.valueOf(get(i)));
+	    buf[pos++] = '\r';
+	    buf[pos++] = '\n';
+	}
+	buf[pos++] = '\r';
+	buf[pos++] = '\n';
+
+	out.write(buf, 0, pos);
+	return pos;
+    }
+
+    private static int
+    encode(byte[] buf, int pos, String s)
+    {
+	int len = s.length();
+	for (int i = 0; i < len; i++) {
+	    buf[pos++] = (byte) s.charAt(i);
+	}
+	return pos;
+    }
+
     /**
      * Maps the given case-insensitive key to the specified value if the
      * key does not already exist in this <code>MimeHeaders</code> object.
@@ -26,6 +26,10 @@
  *
  * Version Histories:
  *
+ * unversioned
+ *   made Regexp immutable so that instances can be shared between threads,
+ *   added compile() with a cache for patterns not known in advance
+ *
  * 2.3 04/12/30-12:42:56 (suhler)
  *   add toString()
  *
@@ -83,6 +87,9 @@
 
 package sunlabs.brazil.util.regexp;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * The <code>Regexp</code> class can be used to match a pattern against a
  * string and optionally replace the matched parts with new strings.
@@ -357,28 +364,39 @@ implements java.io.Serializable
     /**
      * The bytecodes making up the regexp program.
      */
-    char[] program;
+    final char[] program;
 
     /**
      * Whether the regexp matching should be case insensitive.
      */
-    boolean ignoreCase;
+    final boolean ignoreCase;
 
     /**
      * The number of parenthesized subexpressions in the regexp pattern,
      * plus 1 for the match of the whole pattern itself.
      */
-    int npar;
+    final int npar;
 
     /**
      * <code>true</code> if the pattern must match the beginning of the
      * string, so we don't have to waste time matching against all possible
      * starting locations in the string.
      */
-    boolean anchored;
+    final boolean anchored;
     
-    int startChar;
-    String must;
+    final int startChar;
+    final String must;
+
+    /**
+     * Maximum number of patterns kept by {@link #compile(String, boolean)}.
+     */
+    private static final int CACHE_SIZE = 64;
+
+    private static final Map cache = new LinkedHashMap(CACHE_SIZE, 0.75f, true) {
+	protected boolean removeEldestEntry(Map.Entry eldest) {
+	    return size() > CACHE_SIZE;
+	}
+    };
 
     /**
      * Compiles a new Regexp object from the given regular expression
@@ -389,6 +407,9 @@ implements java.io.Serializable
      * or substitutions.  If the caller caches the new Regexp object, that
      * parsing time will be saved because the same Regexp can be used with
      * respect to many different strings.
+     * <p>
+     * Regexp objects are immutable, so that a single instance may be
+     * shared by any number of threads, e.g. as a constant.
      *
      * @param	pat
      *          The string holding the regular expression pattern.
@@ -401,7 +422,7 @@ implements java.io.Serializable
     Regexp(String pat)
 	throws IllegalArgumentException
     {
-	compile(pat);
+	this(pat, false);
     }
 
     /**
@@ -429,7 +450,105 @@ implements java.io.Serializable
 	if (ignoreCase) {
 	    pat = pat.toLowerCase();
 	}
-	compile(pat);
+
+	Compiler rcstate = new Compiler();
+	rcstate.parse = pat.toCharArray();
+	rcstate.off = 0;
+	rcstate.npar = 1;
+	rcstate.code = new StringBuffer();
+
+	rcstate.reg(false);
+
+	program = rcstate.code.toString().toCharArray();
+	npar = rcstate.npar;
+
+	/* optimize */
+	boolean anchored = false;
+	int startChar = -1;
+	if (program[rcstate.regnext(0)] == END) {
+	    if (program[2] == BOL) {
+		anchored = true;
+	    } else if (program[2] == EXACTLY) {
+		startChar = (int) program[5];
+	    }
+	}
+	this.anchored = anchored;
+	this.startChar = startChar;
+
+	/*
+	 * If there's something expensive in the r.e., find the
+	 * longest literal string that must appear and make it the
+	 * regmust.  Resolve ties in favor of later strings, since
+	 * the regstart check works with the beginning of the r.e.
+	 * and avoiding duplication strengthens checking.  Not a
+	 * strong reason, but sufficient in the absence of others.
+	 */
+/*
+	if ((rcstate.flagp & Compiler.SPSTART) != 0) {
+	    int index = -1;
+	    int longest = 0;
+
+	    for (scan = 0; scan < program.length; ) {
+		switch (program[scan]) {
+		    case EXACTLY:
+			int length = program[scan + 2];
+			if (length > longest) {
+			    index = scan;
+			    longest = length;
+			}
+			// fall through;
+
+		    case ANYOF:
+		    case ANYBUT:
+			scan += 3 + program[scan + 2];
+			break;
+
+		    default:
+			scan += 2;
+			break;
+		}
+	    }
+	    if (longest > 0) {
+		must = new String(program, index + 3, longest);
+	    }
+	}
+*/
+	must = null;
+    }
+
+    /**
+     * Returns a compiled Regexp for the given pattern, reusing a previously
+     * compiled one if possible.  Use this for patterns that are not known
+     * in advance, e.g. patterns taken from configuration properties at
+     * request time.
+     *
+     * @param	pat
+     *          The string holding the regular expression pattern.
+     *
+     * @param	ignoreCase
+     *		If <code>true</code> then the regular expression will
+     *		do case-insensitive matching.
+     *
+     * @return	The compiled regular expression.
+     *
+     * @throws	IllegalArgumentException if the pattern is malformed.
+     */
+    public static Regexp
+    compile(String pat, boolean ignoreCase)
+	throws IllegalArgumentException
+    {
+	String key = (ignoreCase ? "i" : "c") + pat;
+	Regexp re;
+	synchronized (cache) {
+	    re = (Regexp) cache.get(key);
+	}
+	if (re == null) {
+	    re = new Regexp(pat, ignoreCase);
+	    synchronized (cache) {
+		cache.put(key, re);
+	    }
+	}
+	return re;
     }
 
     /**
@@ -855,72 +974,6 @@ implements java.io.Serializable
     }
 
 
-    private void
-    compile(String exp)
-	throws IllegalArgumentException
-    {
-	Compiler rcstate = new Compiler();
-	rcstate.parse = exp.toCharArray();
-	rcstate.off = 0;
-	rcstate.npar = 1;
-	rcstate.code = new StringBuffer();
-
-	rcstate.reg(false);
-
-	program = rcstate.code.toString().toCharArray();
-	npar = rcstate.npar;
-	startChar = -1;
-
-	/* optimize */
-	if (program[rcstate.regnext(0)] == END) {
-	    if (program[2] == BOL) {
-		anchored = true;
-	    } else if (program[2] == EXACTLY) {
-		startChar = (int) program[5];
-	    }
-	}
-
-	/*
-	 * If there's something expensive in the r.e., find the
-	 * longest literal string that must appear and make it the
-	 * regmust.  Resolve ties in favor of later strings, since
-	 * the regstart check works with the beginning of the r.e.
-	 * and avoiding duplication strengthens checking.  Not a
-	 * strong reason, but sufficient in the absence of others.
-	 */
-/*
-	if ((rcstate.flagp & Compiler.SPSTART) != 0) {
-	    int index = -1;
-	    int longest = 0;
-
-	    for (scan = 0; scan < program.length; ) {
-		switch (program[scan]) {
-		    case EXACTLY:
-			int length = program[scan + 2];
-			if (length > longest) {
-			    index = scan;
-			    longest = length;
-			}
-			// fall through;
-
-		    case ANYOF:
-		    case ANYBUT:
-			scan += 3 + program[scan + 2];
-			break;
-
-		    default:
-			scan += 2;
-			break;
-		}
-	    }
-	    if (longest > 0) {
-		must = new String(program, index + 3, longest);
-	    }
-	}
-*/
-
-    }
-
     Match
     exec(String str, int start, int off)
     {